@@ -0,0 +1,503 @@
+package edu.ucla.cens.accelservice;
+
+import edu.ucla.cens.systemlog.Log;
+
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Pushes recorded samples to the registered IAccelListener objects.
+ *
+ * A listener either receives each complete window, or receives the
+ * samples of the window being recorded in batches. A batch is sent
+ * when the listener has maxBatchSize undelivered samples, or when its
+ * oldest undelivered sample is older than maxLatency.
+ *
+ * Samples are decimated to the rate the client of each listener
+ * asked for, and only the first reading length of the client is
+ * delivered from each window. A client thus receives only the
+ * samples it needs. The batch size counts the decimated samples.
+ *
+ * All calls to the listeners are oneway, and dead listeners are
+ * dropped by the RemoteCallbackList. Batch listeners are served by
+ * onSample() and finishWindow(), which must be called from the 
+ * thread that records the samples. Window listeners are kept in a 
+ * separate list and served by publishWindow() on the publishing 
+ * thread, so the two threads never broadcast on the same list.
+ */
+class AccelPublisher
+{
+    /** TAG string used for logging */
+    private static final String TAG = "AccelPublisher";
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+
+    /** Listeners that receive batches of samples */
+    private final RemoteCallbackList<IAccelListener> mListeners
+        = new RemoteCallbackList<IAccelListener>()
+    {
+        @Override
+        public void onCallbackDied(IAccelListener listener)
+        {
+            mDirty = true;
+        }
+    };
+
+    /** Listeners that receive complete windows */
+    private final RemoteCallbackList<IAccelListener> mWindowListeners
+        = new RemoteCallbackList<IAccelListener>();
+
+    /** Rate and reading length asked for by each client */
+    private final ConcurrentHashMap<String, ClientSpec> mClients
+        = new ConcurrentHashMap<String, ClientSpec>();
+
+    /** Set when the listener set changes */
+    private volatile boolean mDirty = true;
+
+    /** Set if any listener asked for batches */
+    private boolean mHasBatchListeners = false;
+
+    /** Buffer size at the last flush */
+    private int mFlushCount = 0;
+
+    /** Buffer size at which the next batch is due */
+    private int mNextFlushCount = Integer.MAX_VALUE;
+
+    /** Sensor time at which the next batch is due */
+    private long mNextFlushTime = Long.MAX_VALUE;
+
+    /**
+     * Smallest latency of the listeners that were fully flushed.
+     * Their deadline is known only once the next sample arrives.
+     */
+    private long mPendingLatency = Long.MAX_VALUE;
+
+
+
+    /**
+     * Registers a listener.
+     *
+     * @param   callerName      String identifying the client
+     * @param   listener        the listener to register
+     * @param   maxBatchSize    largest number of samples in a batch,
+     *                          or zero to receive complete windows
+     * @param   maxLatency      longest time in milliseconds a sample
+     *                          waits before it is sent, or zero for
+     *                          no bound
+     * @return                  true if the listener was registered
+     */
+    public boolean register(String callerName, IAccelListener listener,
+            int maxBatchSize, long maxLatency)
+    {
+        // Registering again replaces the previous settings
+        mListeners.unregister(listener);
+        mWindowListeners.unregister(listener);
+
+        ListenerInfo info = new ListenerInfo(callerName, maxBatchSize,
+                maxLatency * NANOS_PER_MILLI);
+        boolean res;
+
+        if (maxBatchSize > 0)
+            res = mListeners.register(listener, info);
+        else
+            res = mWindowListeners.register(listener, info);
+        mDirty = true;
+
+        return res;
+    }
+
+    /**
+     * Unregisters a listener.
+     *
+     * @param   listener        the listener to remove
+     */
+    public void unregister(IAccelListener listener)
+    {
+        mListeners.unregister(listener);
+        mWindowListeners.unregister(listener);
+        mDirty = true;
+    }
+
+    /**
+     * Sets the rate and the reading length the listeners of a client
+     * receive samples with.
+     *
+     * @param   callerName      String identifying the client
+     * @param   rate            sensor rate constant
+     * @param   readInterval    reading length in milliseconds
+     */
+    public void setClient(String callerName, int rate,
+            long readInterval)
+    {
+        mClients.put(callerName, new ClientSpec(rate, readInterval));
+        mDirty = true;
+    }
+
+    /**
+     * Forgets the settings of a client. Its listeners receive all
+     * samples from now on.
+     *
+     * @param   callerName      String identifying the client
+     */
+    public void removeClient(String callerName)
+    {
+        mClients.remove(callerName);
+        mDirty = true;
+    }
+
+    /**
+     * Returns the part of a window meant for the given client.
+     *
+     * @param   callerName      String identifying the client
+     * @param   window          a complete window
+     * @return                  the first reading length of the
+     *                          client, at the rate of the client
+     */
+    public AccelWindow clientWindow(String callerName,
+            AccelWindow window)
+    {
+        ClientSpec spec = mClients.get(callerName);
+
+        if (spec == null)
+            return window;
+
+        return Decimator.toRate(window.truncate(spec.readLength),
+                spec.rate);
+    }
+
+    /**
+     * Unregisters all listeners.
+     */
+    public void kill()
+    {
+        mListeners.kill();
+        mWindowListeners.kill();
+    }
+
+    /**
+     * Called after each sample is added to the buffer. Sends the
+     * batches that are due.
+     *
+     * @param   buffer          buffer of the window being recorded
+     * @param   sequence        sequence number of that window
+     */
+    public void onSample(SampleBuffer buffer, long sequence)
+    {
+        if (mDirty)
+        {
+            mDirty = false;
+            flush(buffer, sequence, false);
+        }
+
+        if (!mHasBatchListeners)
+            return;
+
+        int count = buffer.size();
+
+        if ((count == mFlushCount + 1)
+                && (mPendingLatency != Long.MAX_VALUE))
+        {
+            mNextFlushTime = Math.min(mNextFlushTime,
+                    buffer.timeAt(mFlushCount) + mPendingLatency);
+            mPendingLatency = Long.MAX_VALUE;
+        }
+
+        if ((count >= mNextFlushCount)
+                || (buffer.timeAt(count - 1) >= mNextFlushTime))
+            flush(buffer, sequence, false);
+    }
+
+    /**
+     * Called on the recording thread when a window is complete. 
+     * Sends the remaining samples to the batch listeners.
+     *
+     * @param   sequence        sequence number of the window
+     * @param   buffer          buffer the window was recorded into
+     */
+    public void finishWindow(long sequence, SampleBuffer buffer)
+    {
+        flush(buffer, sequence, true);
+        resetBatches();
+    }
+
+    /**
+     * Called on the recording thread when a window is dropped before
+     * it is complete. The samples of the window that were not sent
+     * yet are dropped with it.
+     */
+    public void abortWindow()
+    {
+        resetBatches();
+    }
+
+    /*
+     * Makes the batches of the next window start from its first
+     * sample.
+     */
+    private void resetBatches()
+    {
+        int n = mListeners.beginBroadcast();
+        try
+        {
+            for (int i = 0; i < n; i++)
+            {
+                ListenerInfo info
+                    = (ListenerInfo) mListeners.getBroadcastCookie(i);
+
+                info.sent = 0;
+                info.closed = false;
+                info.decimator = null;
+            }
+        }
+        finally
+        {
+            mListeners.finishBroadcast();
+        }
+
+        mDirty = true;
+    }
+
+    /**
+     * Called on the publishing thread with each complete window.
+     * Sends the window to the window listeners.
+     *
+     * @param   window          the complete window
+     */
+    public void publishWindow(AccelWindow window)
+    {
+        int n = mWindowListeners.beginBroadcast();
+        try
+        {
+            for (int i = 0; i < n; i++)
+            {
+                ListenerInfo info = (ListenerInfo) 
+                    mWindowListeners.getBroadcastCookie(i);
+
+                send(mWindowListeners.getBroadcastItem(i), info, 
+                        clientWindow(info.callerName, window), false);
+            }
+        }
+        finally
+        {
+            mWindowListeners.finishBroadcast();
+        }
+    }
+
+    /*
+     * Sends the due batches and computes when the next one is due.
+     */
+    private void flush(SampleBuffer buffer, long sequence, boolean all)
+    {
+        int count = buffer.size();
+        int nextCount = Integer.MAX_VALUE;
+        long nextTime = Long.MAX_VALUE;
+        long pendingLatency = Long.MAX_VALUE;
+        boolean hasBatch = false;
+
+        int n = mListeners.beginBroadcast();
+        try
+        {
+            for (int i = 0; i < n; i++)
+            {
+                ListenerInfo info
+                    = (ListenerInfo) mListeners.getBroadcastCookie(i);
+
+                hasBatch = true;
+                if (info.closed)
+                    continue;
+
+                ClientSpec spec = mClients.get(info.callerName);
+                int end = count;
+                boolean complete = all;
+
+                if (spec != null)
+                {
+                    info.setRate(spec.rate, buffer.getRate());
+
+                    // Stop at the end of the reading length
+                    if ((spec.readLength > 0) && (count > 0))
+                    {
+                        int limit = buffer.indexAfter(buffer.timeAt(0)
+                                + spec.readLength);
+                        if (limit < count)
+                        {
+                            end = limit;
+                            complete = true;
+                        }
+                    }
+                }
+                else
+                {
+                    info.setRate(buffer.getRate(), buffer.getRate());
+                }
+
+                if (complete || info.isDue(buffer, end))
+                {
+                    IAccelListener listener
+                        = mListeners.getBroadcastItem(i);
+
+                    while (info.sent < end)
+                    {
+                        int to = Math.min(end,
+                                info.sent + info.rawBatchSize);
+                        AccelWindow batch = buffer.toWindow(sequence,
+                                info.sent, to);
+
+                        if (info.decimator != null)
+                            batch = info.decimator.decimate(batch, 
+                                    false);
+
+                        if (batch.size() > 0)
+                            send(listener, info, batch, true);
+                        info.sent = to;
+                    }
+
+                    // Emit the partial bin left at the end of the window
+                    if (complete && (info.decimator != null))
+                    {
+                        AccelWindow rest = info.decimator.decimate(
+                                buffer.toWindow(sequence, end, end),
+                                true);
+
+                        if (rest.size() > 0)
+                            send(listener, info, rest, true);
+                    }
+                }
+
+                if (complete)
+                {
+                    // Nothing more of this window is due to the client
+                    info.closed = true;
+                    continue;
+                }
+
+                nextCount = Math.min(nextCount,
+                        info.sent + info.rawBatchSize);
+
+                if (info.maxLatency > 0)
+                {
+                    if (info.sent < count)
+                        nextTime = Math.min(nextTime,
+                                buffer.timeAt(info.sent)
+                                + info.maxLatency);
+                    else
+                        pendingLatency = Math.min(pendingLatency,
+                                info.maxLatency);
+                }
+            }
+        }
+        finally
+        {
+            mListeners.finishBroadcast();
+        }
+
+        mHasBatchListeners = hasBatch;
+        mFlushCount = count;
+        mNextFlushCount = nextCount;
+        mNextFlushTime = nextTime;
+        mPendingLatency = pendingLatency;
+    }
+
+    private void send(IAccelListener listener, ListenerInfo info,
+            AccelWindow window, boolean batch)
+    {
+        try
+        {
+            if (batch)
+                listener.onSamples(window);
+            else
+                listener.onWindow(window);
+        }
+        catch (RemoteException re)
+        {
+            // The RemoteCallbackList drops the dead listener
+            Log.e(TAG, "Could not deliver to " + info.callerName, re);
+        }
+    }
+
+
+    static class ClientSpec
+    {
+        public final int rate;
+
+        /** Reading length in nanoseconds */
+        public final long readLength;
+
+        ClientSpec(int rate, long readInterval)
+        {
+            this.rate = rate;
+            this.readLength = readInterval * NANOS_PER_MILLI;
+        }
+    }
+
+
+    static class ListenerInfo
+    {
+        public final String callerName;
+        public final int maxBatchSize;
+        public final long maxLatency;
+
+        /** Number of samples of the current window already sent */
+        public int sent;
+
+        /** Set once the reading length of the client was sent */
+        public boolean closed;
+
+        /** Decimator of the batches, null if no decimation is needed */
+        public Decimator decimator;
+
+        /** Number of recorded samples that make up a batch */
+        public int rawBatchSize;
+
+        ListenerInfo(String callerName, int maxBatchSize,
+                long maxLatency)
+        {
+            this.callerName = callerName;
+            this.maxBatchSize = maxBatchSize;
+            this.maxLatency = maxLatency;
+            this.sent = 0;
+            this.closed = false;
+            this.decimator = null;
+            this.rawBatchSize = maxBatchSize;
+        }
+
+        /*
+         * Prepares the decimation of the batches from the recording
+         * rate to the rate of the client.
+         */
+        void setRate(int rate, int recordRate)
+        {
+            if (!Decimator.isSlower(rate, recordRate))
+            {
+                decimator = null;
+                rawBatchSize = maxBatchSize;
+                return;
+            }
+
+            if ((decimator == null) || (decimator.getRate() != rate))
+                decimator = new Decimator(rate);
+
+            long step = AccelService.ratePeriod(rate)
+                / AccelService.ratePeriod(recordRate);
+            rawBatchSize = (int) Math.min(Integer.MAX_VALUE / 2,
+                    maxBatchSize * Math.max(step, 1));
+        }
+
+        boolean isDue(SampleBuffer buffer, int count)
+        {
+            if (sent >= count)
+                return false;
+
+            if (count - sent >= rawBatchSize)
+                return true;
+
+            return (maxLatency > 0) && (buffer.timeAt(count - 1)
+                    - buffer.timeAt(sent) >= maxLatency);
+        }
+    }
+
+}
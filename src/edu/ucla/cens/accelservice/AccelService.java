@@ -13,19 +13,26 @@ import android.content.Intent;
 import android.content.ComponentName;
 import android.content.ServiceConnection;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
 import android.os.RemoteException;
 import android.os.PowerManager;
+import android.os.Process;
 import android.hardware.SensorManager;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorEvent;
 import android.hardware.Sensor;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class AccelService extends Service
@@ -41,22 +48,75 @@ public class AccelService extends Service
 	private static final int SLEEP_TIMER_MSG = 1;
 	private static final int READ_TIMER_MSG = 2;
     //private static final int WARMUP_TIMER_MSG = 3;
+    private static final int START_CYCLE_MSG = 4;
+    private static final int STOP_SENSOR_MSG = 5;
+    private static final int SENTINEL_MSG = 6;
+
+    /** Publishing message type */
+    private static final int PUBLISH_MSG = 1;
+
+    /** History message types */
+    private static final int APPEND_MSG = 1;
+    private static final int ROLLUP_MSG = 2;
 
     /** Alarm intent action */
     private static final String ACCEL_ALARM_ACTION = "accel_alarm";
+
+    /** Preferences file of the warm-up statistics */
+    private static final String WARMUP_PREFS_NAME = "warmup_stats";
+
+    /** Directory of the window history, its segment size and count */
+    private static final String HISTORY_DIR_NAME = "history";
+    private static final int HISTORY_SEGMENT_SIZE = 1 << 20;
+    private static final int HISTORY_SEGMENTS = 16;
+
+    /** Directory of the rollup tiers */
+    private static final String ROLLUP_DIR_NAME = "rollups";
+
+    /** Largest number of rollups returned by one query */
+    private static final int MAX_ROLLUPS = 2000;
+
+    /** 
+     * Largest number of windows sent by one range query, so that
+     * they fit in the binder buffer of the client
+     */
+    private static final int MAX_QUERY_WINDOWS = 16;
+
+    /** Number of complete windows waiting to be published */
+    private static final int WINDOW_QUEUE_SIZE = 16;
+
+    /** Longest time the CPU is kept awake to publish a window */
+    private static final long PUBLISH_LOCK_TIMEOUT = 5000;
+
+    /** Longest time onDestroy() waits for a worker thread to end */
+    private static final long THREAD_JOIN_TIMEOUT = 5000;
 	
 	/** Constant values used for easy time specification */
 	private static final int ONE_SECOND = 1000;
 	private static final int ONE_MINUTE = 60 * ONE_SECOND;
 
     /** Default operation values */
-    private static final long DEFAULT_WARMUP_INTERVAL = ONE_SECOND;
-    private static final long DEFAULT_READ_INTERVAL = ONE_SECOND;
+    static final long DEFAULT_WARMUP_INTERVAL = ONE_SECOND;
+    static final long DEFAULT_READ_INTERVAL = ONE_SECOND;
     private static final long DEFAULT_SLEEP_INTERVAL = ONE_MINUTE;
-    private static final int DEFAULT_RATE = 
+    static final int DEFAULT_RATE = 
         SensorManager.SENSOR_DELAY_GAME;
     private static final int DEFAULT_POWERCYCLE_HORIZON = 5 * ONE_MINUTE;
 
+    /** Rate the sentinel watches the sensor at between cycles */
+    private static final int SENTINEL_RATE = 
+        SensorManager.SENSOR_DELAY_UI;
+
+    /** Sensor range assumed if the sensor does not report one */
+    private static final float DEFAULT_SENSOR_RANGE = 
+        2.0f * SensorManager.GRAVITY_EARTH;
+
+    /** Nominal sample periods of the sensor rates in milliseconds */
+    private static final long FASTEST_PERIOD = 5;
+    private static final long GAME_PERIOD = 20;
+    private static final long UI_PERIOD = 60;
+    private static final long NORMAL_PERIOD = 200;
+
 
 	
 	/** Operation power consumption regimes */
@@ -64,17 +124,19 @@ public class AccelService extends Service
 	public static final int REGIME_CONTROLLED = 1;
 
 	
-	/** Sensor reading rate. Default rate is set to GAME */
-	private int mRate = DEFAULT_RATE;
-	
 	/** Sleep interval value. By default set to one minutes */
-	private long mSleepInterval = DEFAULT_SLEEP_INTERVAL;
+	private volatile long mSleepInterval = DEFAULT_SLEEP_INTERVAL;
 
-    /** Sensor warmup interval */
-    private long mWarmupInterval = DEFAULT_WARMUP_INTERVAL;
+    /** Largest value of the sensor in m/s^2 */
+    private float mSensorRange = DEFAULT_SENSOR_RANGE;
 
-	/** Reading interval value. By default set to one second */
-	private long mReadInterval = DEFAULT_READ_INTERVAL;
+    /** 
+     * Client settings last reported by adjustSettings(). The rate,
+     * lengths, modes and sentinel in use are read from the Aggregate
+     * of the registry.
+     */
+    private final AtomicReference<ClientRegistry.Aggregate> mApplied
+        = new AtomicReference<ClientRegistry.Aggregate>();
 
 
 	
@@ -82,37 +144,99 @@ public class AccelService extends Service
 	private boolean mJustStarted = true;
 	
 	/** Boolean variable used to duty-cycle the sensor */
-	//private boolean mSensorRunning = false;
+	private boolean mSensorRunning = false;
 
     /** Boolean variable set to read the sensor after warm-up */
     private boolean mRecordSensor = false;
+
+    /** Backs off the sleep intervals while the device is still */
+    private final MotionGate mMotionGate = new MotionGate();
+
+    /** Watches the samples of an adaptive warm-up */
+    private final WarmupDetector mWarmupDetector = new WarmupDetector();
+
+    /** Watches the low-rate samples between cycles for events */
+    private final SentinelDetector mSentinel = new SentinelDetector();
+
+    /** Warm-up latencies measured on this device */
+    private WarmupStats mWarmupStats;
+
+    /** Time and rate the current warm-up started with */
+    private long mWarmupStart;
+    private int mWarmupRate;
+
+    /** Saves the warm-up statistics, posted to the history thread */
+    private final Runnable mSaveWarmupStats = new Runnable()
+    {
+        public void run()
+        {
+            mWarmupStats.save();
+        }
+    };
 	
-	/** Latest recorded time-stamp */
-	private long mLastTS;
+	/** Sequence number of the latest published window */
+	private long mWindowSequence = 0;
 
 
     /** Set if the service is running */
-    private boolean mIsRunning = false;
+    private volatile boolean mIsRunning = false;
 
-    /** Table of client names and correspondig information */
-    private Hashtable<String, ClientInfo> mClientsMap;
-	
+    /** Settings of every client, by client name */
+    private ClientRegistry mRegistry;
+
+    /** Leases of the clients that registered a token, by name */
+    private final ConcurrentHashMap<String, Lease> mLeases
+        = new ConcurrentHashMap<String, Lease>();
+
+    /** Goertzel frequencies of the spectrum clients, by name */
+    private final ConcurrentHashMap<String, float[]> mSpectralBands
+        = new ConcurrentHashMap<String, float[]>();
+
+    /** 
+     * Union of the Goertzel frequencies of all the spectrum clients,
+     * or null if no client asked for the spectrum
+     */
+    private volatile float[] mBandFrequencies;
+
+    /** Next reading time of every client */
+    private DutyCycleScheduler mScheduler;
 	
-	/** List of recorded force values */
-	private List<Double> mLastForceList;
-	private List<Double> mTempForceList;
 	
-	/** List of recorded sensor values */
-	private List<Double> mLastListX;
-	private List<Double> mTempListX;
+	/** 
+     * Last complete window of samples. Replaced as a whole when a 
+     * new window is ready, so readers never need a lock.
+     */
+	private volatile AccelWindow mLastWindow;
+
+    /** Features of the latest recorded window */
+    private volatile WindowFeatures mLastFeatures;
+
+    /** Classifies every window and keeps the recent results */
+    private final ActivityClassifier mClassifier 
+        = new ActivityClassifier();
+
+    /** Spectrum of the latest window, if a client asked for it */
+    private volatile WindowSpectrum mLastSpectrum;
 
-	private List<Double> mLastListY;
-	private List<Double> mTempListY;
+    /** Computes the spectrum of a window when it is finished */
+    private final SpectrumAnalyzer mSpectrumAnalyzer 
+        = new SpectrumAnalyzer();
 
-	private List<Double> mLastListZ;
-	private List<Double> mTempListZ;
+    /** Computes the features of the current window on the fly */
+    private final FeatureAccumulator mFeatureAccumulator 
+        = new FeatureAccumulator();
+
+	/** Buffer the current window is recorded into */
+	private SampleBuffer mTempBuffer;
+
+    /** Complete windows on their way to the publishing thread */
+    private final WindowQueue mWindowQueue 
+        = new WindowQueue(WINDOW_QUEUE_SIZE);
 
     private AccelCounter mAccelCounter;
+
+    /** Pushes windows and sample batches to registered listeners */
+    private AccelPublisher mPublisher;
 	
 
     /** The alarm manager object */
@@ -120,8 +244,27 @@ public class AccelService extends Service
 
     private PendingIntent mAccelSender;
 
+    /** Time the alarm is set for, or -1 if it is not set */
+    private long mArmedWakeup = -1;
+
     /** The partial wakelock object */
     private PowerManager.WakeLock mCpuLock;
+
+    /** Keeps the CPU awake until a complete window is published */
+    private PowerManager.WakeLock mPublishLock;
+
+    /** Thread that runs the sensor and records the samples */
+    private HandlerThread mSensorThread;
+
+    /** Windows stored on disk, or null if the store is not usable */
+    private WindowHistory mHistory;
+
+    /** Long-term rollups, or null if they are not usable */
+    private RollupHistory mRollups;
+
+    /** Thread that writes the window history */
+    private HandlerThread mHistoryThread;
+    private Handler mHistoryHandler;
 	 
 	/** The SensorManager object */
 	private SensorManager mSensorManager;
@@ -234,43 +377,52 @@ public class AccelService extends Service
 		{
             mAccelCounter.count();
 
+            float x = se.values[0];
+            float y = se.values[1];
+            float z = se.values[2];
+            double grav = SensorManager.GRAVITY_EARTH;
+            double nx = x/grav, ny = y/grav, nz = z/grav;
+
+            float totalForce = (float) Math.sqrt(nx*nx + ny*ny + nz*nz);
+
             if (mRecordSensor)
             {
                 if (mJustStarted)
                 {
                     // Just started receiving sensor updates. 
-                    // Start a new list
-                    mTempForceList = new ArrayList<Double>();
-                    mTempListX = new ArrayList<Double>();
-                    mTempListY = new ArrayList<Double>();
-                    mTempListZ = new ArrayList<Double>();
+                    // Reuse the buffer for the new window
+                    ClientRegistry.Aggregate settings 
+                        = mRegistry.aggregate();
+                    startWindow(settings.rate, settings.readInterval);
 
 
                     mHandler.sendMessageAtTime(
                             mHandler.obtainMessage(SLEEP_TIMER_MSG),
-                            SystemClock.uptimeMillis() + mReadInterval);
+                            SystemClock.uptimeMillis() 
+                            + settings.readInterval);
 
 
                     mJustStarted = false;
                 }
-                double x = se.values[0];
-                double y = se.values[1];
-                double z = se.values[2];
-                double totalForce = 0.0;
-                double grav = SensorManager.GRAVITY_EARTH;
-                
-                totalForce += Math.pow(x/grav, 2.0);
-                totalForce += Math.pow(y/grav, 2.0);
-                totalForce += Math.pow(z/grav, 2.0);
-                totalForce = Math.sqrt(totalForce);
-                
-                mLastTS = System.currentTimeMillis();
-                
-                mTempForceList.add(totalForce);
-                mTempListX.add(x);
-                mTempListY.add(y);
-                mTempListZ.add(z);
 
+                recordSample(se.timestamp, x, y, z, totalForce);
+            }
+            else if (mWarmupDetector.isActive())
+            {
+                if (mWarmupDetector.add(se.timestamp, x, y, z))
+                    startRecording(true);
+            }
+            else if (mSentinel.isActive())
+            {
+                if (!mAccelCounter.hasBudget())
+                {
+                    Log.i(TAG, "Ran out of budget. Stopping the "
+                            + "sentinel.");
+                    stopSentinel();
+                }
+                else if (mSentinel.add(se.timestamp, x, y, z, 
+                            totalForce))
+                    startCapture();
             }
 			
 		}
@@ -317,12 +469,15 @@ public class AccelService extends Service
 		 * Set the rate of accelerometer sampling. This is only a 
 		 * suggestion and the service may choose a lower rate 
          * to save power.
+         * The sensor runs at the fastest rate any client asked for.
+         * Samples pushed to the listeners of this client and those
+         * returned by getClientWindow() are decimated to this rate.
 		 * Possible values are:
 		 * SENSOR_DELAY_FASTEST, SENSOR_DELAY_GAME, 
          * SENSOR_DELAY_NORMA, SENSOR_DELAY_UI
 		 * 
 		 * @param 	rate	rate of sensor reading
-		 * @return 			the actual rate that was set
+		 * @return 			the rate this client receives samples at
 		 * 
 		 */
 		public int suggestRate(String callerName, int rate)
@@ -330,22 +485,24 @@ public class AccelService extends Service
             if (callerName == null)
                 return -1;
 
-            if (mClientsMap.containsKey(callerName))
-            {
-                mClientsMap.get(callerName).setRate(rate);
-                Log.v(TAG, "Got rate suggestion of " + rate
-                        + " from " + callerName);
-            }
-            else
-            {
-                Log.i(TAG, "Client " + callerName + 
-                        " not recognized. Adding it.");
-                mClientsMap.put(callerName, new ClientInfo());
-                mClientsMap.get(callerName).setRate(rate);
-            }
-
-            return adjustRate();
+            noteClient(callerName);
+            return rateChanged(callerName, mRegistry.update(callerName, 
+                        new ClientInfo(), ClientInfo.rateChange(rate)));
 		}
+
+        /**
+         * Same as suggestRate() for a client registered with
+         * register().
+         *
+         * @param   handle      handle returned by register()
+         * @return              the rate this client receives samples
+         *                      at, or -1 if the handle is not valid
+         */
+        public int suggestRateByHandle(int handle, int rate)
+        {
+            return rateChanged(mRegistry.nameOf(handle), 
+                    mRegistry.update(handle, ClientInfo.rateChange(rate)));
+        }
 		
 		/**
 		 * Set the length of the interval that accelerometer is
@@ -360,23 +517,27 @@ public class AccelService extends Service
             if (callerName == null)
                 return -1;
 
-            if (mClientsMap.containsKey(callerName))
-            {
-                mClientsMap.get(callerName).setReadInterval(length);
-                Log.v(TAG, "Read length set to " 
-                        + length + " by " + callerName);
-            }
-            else
-            {
-                Log.i(TAG, "Client " + callerName + 
-                        " not recognized. Adding it.");
-                mClientsMap.put(callerName, new ClientInfo());
-                mClientsMap.get(callerName).setReadInterval(length);
-            }
-
-            return adjustReadInterval();
+            noteClient(callerName);
+            return readIntervalChanged(callerName, 
+                    mRegistry.update(callerName, new ClientInfo(), 
+                        ClientInfo.readChange(length)));
 		}
 
+        /**
+         * Same as setReadingLength() for a client registered with
+         * register().
+         *
+         * @param   handle      handle returned by register()
+         * @return              the new reading length, or -1 if the
+         *                      handle is not valid
+         */
+        public long setReadingLengthByHandle(int handle, long length)
+        {
+            return readIntervalChanged(mRegistry.nameOf(handle),
+                    mRegistry.update(handle, 
+                        ClientInfo.readChange(length)));
+        }
+
 
         /**
          * Set the length of the warm-up interval before the actual
@@ -391,24 +552,186 @@ public class AccelService extends Service
             if (callerName == null)
                 return -1;
 
-            if (mClientsMap.containsKey(callerName))
-            {
-                mClientsMap.get(callerName).setWarmupInterval(length);
-                Log.v(TAG, "Warmup interval set to " 
-                        + length + " by " + callerName);
+            noteClient(callerName);
+            return warmupIntervalChanged(callerName, 
+                    mRegistry.update(callerName, new ClientInfo(), 
+                        ClientInfo.warmupChange(length)));
+        }
 
-            }
-            else
-            {
-                Log.i(TAG, "Client " + callerName + 
-                        " not recognized. Adding it.");
-                mClientsMap.put(callerName, new ClientInfo());
-                mClientsMap.get(callerName).setWarmupInterval(length);
-            }
+        /**
+         * Same as setWarmupLength() for a client registered with
+         * register().
+         *
+         * @param   handle      handle returned by register()
+         * @return              the new warm-up length, or -1 if the
+         *                      handle is not valid
+         */
+        public long setWarmupLengthByHandle(int handle, long length)
+        {
+            return warmupIntervalChanged(mRegistry.nameOf(handle),
+                    mRegistry.update(handle, 
+                        ClientInfo.warmupChange(length)));
+        }
+
+        /**
+         * Lets the sleep interval of this client grow while the
+         * device does not move. Each window without motion after
+         * the first doubles the interval, up to maxInterval, and the
+         * first window with motion brings it back to the suggested
+         * interval.
+         *
+         * @param   maxInterval longest sleep interval in 
+         *                      milliseconds, or zero to turn the
+         *                      backoff off
+         * @return              the longest sleep interval of this
+         *                      client
+         */
+        public long setMotionBackoff(String callerName, 
+                long maxInterval)
+        {
+            if (callerName == null)
+                return -1;
+
+            noteClient(callerName);
+            return maxSleepIntervalChanged(callerName, 
+                    mRegistry.update(callerName, new ClientInfo(), 
+                        ClientInfo.maxSleepChange(maxInterval)));
+        }
+
+        /**
+         * Same as setMotionBackoff() for a client registered with
+         * register().
+         *
+         * @param   handle      handle returned by register()
+         * @return              the longest sleep interval of this
+         *                      client, or -1 if the handle is not 
+         *                      valid
+         */
+        public long setMotionBackoffByHandle(int handle, 
+                long maxInterval)
+        {
+            return maxSleepIntervalChanged(mRegistry.nameOf(handle),
+                    mRegistry.update(handle, 
+                        ClientInfo.maxSleepChange(maxInterval)));
+        }
+
+        /**
+         * Watches the sensor at a low rate between cycles and 
+         * captures a window as soon as the force deviates from 1 g
+         * by more than the threshold.
+         *
+         * @param   callerName  String identifying the client
+         * @param   threshold   deviation from 1 g in units of g, or
+         *                      zero to turn the sentinel off
+         * @param   captureLength   length of a capture in 
+         *                      milliseconds
+         * @return              the capture length of this client
+         */
+        public long setSentinel(String callerName, float threshold,
+                long captureLength)
+        {
+            if (callerName == null)
+                return -1;
+
+            noteClient(callerName);
+            return sentinelChanged(callerName, 
+                    mRegistry.update(callerName, new ClientInfo(), 
+                        ClientInfo.sentinelChange(
+                            Math.round(threshold * 1000.0), 
+                            captureLength)));
+        }
+
+        /**
+         * Same as setSentinel() for a client registered with
+         * register().
+         *
+         * @param   handle      handle returned by register()
+         * @return              the capture length of this client, or
+         *                      -1 if the handle is not valid
+         */
+        public long setSentinelByHandle(int handle, float threshold,
+                long captureLength)
+        {
+            return sentinelChanged(mRegistry.nameOf(handle),
+                    mRegistry.update(handle, 
+                        ClientInfo.sentinelChange(
+                            Math.round(threshold * 1000.0), 
+                            captureLength)));
+        }
+
+        /**
+         * Lets the warm-up end as soon as the samples are stable
+         * instead of after the whole warm-up length. The warm-up
+         * length stays the upper bound. The service warms up this
+         * way only if all the clients asked for it.
+         *
+         * @param   enabled     true to allow the adaptive warm-up
+         * @return              true if the service now uses the
+         *                      adaptive warm-up
+         */
+        public boolean setAdaptiveWarmup(String callerName, 
+                boolean enabled)
+        {
+            if (callerName == null)
+                return false;
 
+            noteClient(callerName);
+            return warmupModeChanged(callerName, 
+                    mRegistry.update(callerName, new ClientInfo(), 
+                        ClientInfo.adaptiveWarmupChange(enabled)));
+        }
+
+        /**
+         * Same as setAdaptiveWarmup() for a client registered with
+         * register().
+         *
+         * @param   handle      handle returned by register()
+         * @return              true if the service now uses the
+         *                      adaptive warm-up, false if not or if
+         *                      the handle is not valid
+         */
+        public boolean setAdaptiveWarmupByHandle(int handle, 
+                boolean enabled)
+        {
+            return warmupModeChanged(mRegistry.nameOf(handle),
+                    mRegistry.update(handle, 
+                        ClientInfo.adaptiveWarmupChange(enabled)));
+        }
+
+        /**
+         * Lets the service keep the samples as 16-bit steps of the
+         * sensor range. The service does so only if all the clients
+         * accept it.
+         *
+         * @param   enabled     true to accept quantized samples
+         * @return              true if the service now quantizes the
+         *                      samples
+         */
+        public boolean setQuantized(String callerName, boolean enabled)
+        {
+            if (callerName == null)
+                return false;
 
+            noteClient(callerName);
+            return sampleModeChanged(callerName, 
+                    mRegistry.update(callerName, new ClientInfo(), 
+                        ClientInfo.quantizedChange(enabled)));
+        }
 
-            return adjustWarmupInterval();
+        /**
+         * Same as setQuantized() for a client registered with
+         * register().
+         *
+         * @param   handle      handle returned by register()
+         * @return              true if the service now quantizes the
+         *                      samples, false if not or if the handle
+         *                      is not valid
+         */
+        public boolean setQuantizedByHandle(int handle, boolean enabled)
+        {
+            return sampleModeChanged(mRegistry.nameOf(handle),
+                    mRegistry.update(handle, 
+                        ClientInfo.quantizedChange(enabled)));
         }
 		
 		/**
@@ -417,39 +740,92 @@ public class AccelService extends Service
          * between readings.  This is only a suggestion and the
          * service may choose a longer interval to save power
          *
+         * Each client is read on its own schedule. Readings of 
+         * clients that are due at about the same time share one
+         * sensor session.
 		 * 
 		 * @param	interval	suggested length of off interval 
                                 in milli-seconds
+         * @return              the interval of this client
 		 */
 		public long suggestInterval(String callerName, long interval)
 		{
             if (callerName == null)
                 return -1;
 
-            if (mClientsMap.containsKey(callerName))
-            {
-                mClientsMap.get(callerName).setSleepInterval(interval);
-                Log.v(TAG, "Got interval suggestion of " 
-                        + interval + " from " + callerName);
+            noteClient(callerName);
+            return sleepIntervalChanged(callerName, 
+                    mRegistry.update(callerName, new ClientInfo(), 
+                        ClientInfo.sleepChange(interval)));
+		}
 
-            }
-            else
-            {
+        /**
+         * Same as suggestInterval() for a client registered with
+         * register().
+         *
+         * @param   handle      handle returned by register()
+         * @return              the interval of this client, or -1 if
+         *                      the handle is not valid
+         */
+        public long suggestIntervalByHandle(int handle, long interval)
+        {
+            return sleepIntervalChanged(mRegistry.nameOf(handle),
+                    mRegistry.update(handle, 
+                        ClientInfo.sleepChange(interval)));
+        }
+		
+        /**
+         * Sets all the parameters of a client in one call. The
+         * parameters are applied together and the service settings
+         * are recomputed once. A negative value leaves the
+         * corresponding parameter unchanged.
+         *
+         * @param   callerName      String identifying the client
+         * @param   rate            rate of sensor reading
+         * @param   interval        suggested length of off interval
+         *                          in milli-seconds
+         * @param   warmupLength    length of the warm-up interval
+         *                          in milli-seconds
+         * @param   readLength      length of the reading interval 
+         *                          in milli-seconds
+         * @return                  true if the parameters were set
+         */
+        public boolean configure(String callerName, int rate, 
+                long interval, long warmupLength, long readLength)
+        {
+            if (callerName == null)
+                return false;
 
-                Log.i(TAG, "Client " + callerName + 
-                        " not recognized. Adding it.");
-                mClientsMap.put(callerName, new ClientInfo());
-                mClientsMap.get(callerName).setSleepInterval(interval);
-            }
+            noteClient(callerName);
 
+            // The whole entry is replaced at once so that no one sees
+            // a partly updated client
+            return configured(callerName, mRegistry.update(callerName, 
+                        new ClientInfo(), ClientInfo.configChange(rate, 
+                            interval, warmupLength, readLength)));
+        }
+
+        /**
+         * Same as configure() for a client registered with
+         * register().
+         *
+         * @param   handle      handle returned by register()
+         * @return              true if the parameters were set, 
+         *                      false if the handle is not valid
+         */
+        public boolean configureByHandle(int handle, int rate, 
+                long interval, long warmupLength, long readLength)
+        {
+            return configured(mRegistry.nameOf(handle), 
+                    mRegistry.update(handle, ClientInfo.configChange(
+                            rate, interval, warmupLength, readLength)));
+        }
 
-            return adjustSleepInterval();
-		}
-		
 		/**
 		 * Returns the current sleeping interval.
 		 * 
-		 * @return				current sleep interval used by the service
+		 * @return				shortest sleep interval of all the
+         *                      clients
 		 */
 		public long getInterval()
 		{
@@ -463,7 +839,7 @@ public class AccelService extends Service
 		 */
 		public int getRate()
 		{
-		    return mRate;
+		    return mRegistry.aggregate().rate;
 		}
 
 
@@ -474,7 +850,7 @@ public class AccelService extends Service
 		 */
 		public long getReadingLength()
 		{
-		    return mReadInterval;
+		    return mRegistry.aggregate().readInterval;
 		}
 
 		/**
@@ -484,7 +860,7 @@ public class AccelService extends Service
 		 */
 		public long getWarmupLength()
 		{
-            return mWarmupInterval;
+            return mRegistry.aggregate().warmupInterval;
 		}
 
 
@@ -496,11 +872,52 @@ public class AccelService extends Service
 		 */
 		public List<Double> getLastForce()
 		{
-            synchronized(mLastListX)
-            {
-		        return mLastForceList; 
-            }
+            return mLastWindow.forceList();
 		}
+
+        /**
+         * Returns the spectrum of the latest recorded window.
+         *
+         * @return              spectrum of the latest window, or null
+         *                      if no client asked for it
+         */
+        public WindowSpectrum getLastSpectrum()
+        {
+            return mLastSpectrum;
+        }
+
+        /**
+         * Asks for the spectrum of every window, and for Goertzel
+         * filters at the given frequencies.
+         *
+         * @param   callerName  String identifying the client
+         * @param   frequencies frequencies of the filters in Hz, or
+         *                      null to stop asking for the spectrum
+         * @return              true if the request was applied
+         */
+        public boolean setSpectralBands(String callerName,
+                float[] frequencies)
+        {
+            if (callerName == null)
+                return false;
+
+            noteClient(callerName);
+            return spectralBandsChanged(callerName, frequencies);
+        }
+
+        /**
+         * Same as setSpectralBands() for a client registered with
+         * register().
+         *
+         * @param   handle      handle returned by register()
+         * @return              false if the handle is not valid
+         */
+        public boolean setSpectralBandsByHandle(int handle, 
+                float[] frequencies)
+        {
+            return spectralBandsChanged(mRegistry.nameOf(handle), 
+                    frequencies);
+        }
 		 
 		 /**
 		  * Returns the list of latest recorded X values.
@@ -511,10 +928,7 @@ public class AccelService extends Service
 		 public List<Double> getLastXValues()
 		 {
 
-            synchronized(mLastListX)
-            {
-                return mLastListX;
-            }
+            return mLastWindow.xList();
 		 }
 
 
@@ -526,10 +940,7 @@ public class AccelService extends Service
 		  */
 		 public List<Double> getLastYValues()
 		 {
-            synchronized(mLastListX)
-            {
-		        return mLastListY;
-            }
+            return mLastWindow.yList();
 		 }
 
 		 /**
@@ -540,10 +951,7 @@ public class AccelService extends Service
 		  */
 		 public List<Double> getLastZValues()
 		 { 
-             synchronized(mLastListX)
-             {
-		        return mLastListZ;
-             }
+             return mLastWindow.zList();
 		 }
 
 
@@ -557,129 +965,476 @@ public class AccelService extends Service
 		   */
 		  public long getLastTimeStamp()
 		  {
-             synchronized(mLastListX)
-             {
-		        return mLastTS;
-             }
+             // Zero, as before, if nothing was recorded yet
+             AccelWindow window = mLastWindow;
+             return (window.size() > 0) ? window.getEndTime() : 0;
 		  }
 
           /**
-           * Returns true if the service is running.
+           * Returns the latest recorded window in a single call.
            *
-           * @return             running state of the service
+           * @return             latest recorded window
            */
-          public boolean isRunning()
+          public AccelWindow getLastWindow()
           {
-              return mIsRunning;
+             return mLastWindow;
           }
-		 
+
           /**
-           * Starts the accelerometer service.
+           * Returns the latest recorded window encoded by 
+           * WindowCodec.
+           *
+           * @return             latest window, encoded
            */
-          public void start(String callerName)
+          public byte[] getLastWindowEncoded()
           {
-              
-              if (callerName == null)
-                  return;
-
-              Log.i(TAG, "Received start() from " 
-                      + callerName);
-
-              if (mClientsMap != null)
-                  Log.i(TAG, "Current clients are: " +
-                          mClientsMap.keySet());
-              else
-                  Log.i(TAG, "ClientsMap is null");
-
-
-
-
-              if (!mClientsMap.containsKey(callerName))
-                  mClientsMap.put(callerName, new ClientInfo());
-
-
-
-              if (mClientsMap != null)
-                  Log.i(TAG, "New clients are: " +
-                          mClientsMap.keySet());
-              else
-                  Log.i(TAG, "ClientsMap is null");
-
+             AccelWindow window = mLastWindow;
 
+             return (window != null) ? WindowCodec.encode(window) : null;
+          }
 
-              int clientCount = mClientsMap.size();
+          /**
+           * Returns the features of the latest recorded window.
+           *
+           * @return             features of the latest window
+           */
+          public WindowFeatures getLastFeatures()
+          {
+             return mLastFeatures;
+          }
 
+          /**
+           * Returns a window from the history.
+           *
+           * @param   sequence        sequence number of the window
+           * @return                  the window, or null if it is 
+           *                          not stored
+           */
+          public AccelWindow getHistoryWindow(long sequence)
+          {
+              if (mHistory == null)
+                  return null;
 
-              if ((clientCount == 1) && (!mIsRunning))
-              //if (!mIsRunning)
+              try
               {
-                  Log.i(TAG, "Starting the service");
-                  mAlarmManager.cancel(mAccelSender);
-
-                  mAlarmManager.setRepeating(
-                          AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                          SystemClock.elapsedRealtime(),
-                          mSleepInterval, 
-                          mAccelSender);
-                  mIsRunning = true;
-                  //mSensorRunning = false;
+                  return mHistory.get(sequence);
               }
-              else
+              catch (IOException e)
               {
-                  Log.i(TAG, "Already running");
+                  Log.e(TAG, "Could not read window " + sequence 
+                          + ": " + e);
+                  return null;
               }
           }
-          
+
           /**
-          * Stops the accelerometer service to save maximum power.
-          */
-          public void stop(String callerName)
+           * Returns a window from the history as it is stored.
+           *
+           * @param   sequence        sequence number of the window
+           * @return                  the encoded window, or null if
+           *                          it is not stored
+           */
+          public byte[] getHistoryWindowEncoded(long sequence)
           {
+              if (mHistory == null)
+                  return null;
 
-              if (callerName == null)
-                  return;
-
-              Log.i(TAG, "Received stop() from " 
-                      + callerName);
-
-
-              if (mClientsMap.containsKey(callerName))
-                  mClientsMap.remove(callerName);
-              else
-                  return;
-
-              int clientCount = mClientsMap.size();
-
-              Log.i(TAG, "Client count is " + clientCount);
-
-              if ((clientCount == 0) && (mIsRunning))
+              try
               {
-                  Log.i(TAG, "Stopping the service");
-                  mIsRunning = false;
-                  mAlarmManager.cancel(mAccelSender);
-                  mHandler.removeMessages(SLEEP_TIMER_MSG);
-                  mHandler.removeMessages(READ_TIMER_MSG);
-
-                  mSensorManager.unregisterListener(mSensorListener, 
-                     mSensorManager.getDefaultSensor(
-                         Sensor.TYPE_ACCELEROMETER));
-                 
-                  
-                 //mSensorRunning = false;
-                 mIsRunning = false;
+                  return mHistory.getEncoded(sequence);
               }
-              else
+              catch (IOException e)
               {
-                  Log.i(TAG, "Still need to continue running.");
-                  adjustRate();
-                  adjustSleepInterval();
-                  adjustWarmupInterval();
-                  adjustReadInterval();
+                  Log.e(TAG, "Could not read window " + sequence 
+                          + ": " + e);
+                  return null;
               }
-
           }
- 
-	};
+
+          /**
+           * Streams the stored samples taken between two wall-clock
+           * times to the listener through onWindow().
+           *
+           * @param   startTime       first time in milliseconds
+           * @param   endTime         last time in milliseconds
+           * @param   listener        receives the windows
+           * @return                  number of windows sent, or -1 
+           *                          if the history is not available
+           *                          or a window could not be sent
+           */
+          public int queryRange(long startTime, long endTime,
+                  final IAccelListener listener)
+          {
+              if ((mHistory == null) || (listener == null))
+                  return -1;
+
+              final boolean[] failed = {false};
+
+              try
+              {
+                  int count = mHistory.query(startTime, endTime, 
+                          MAX_QUERY_WINDOWS, new WindowHistory.Receiver()
+                  {
+                      public boolean onWindow(AccelWindow window)
+                      {
+                          try
+                          {
+                              listener.onWindow(window);
+                              return true;
+                          }
+                          catch (RemoteException e)
+                          {
+                              Log.w(TAG, "Could not send window " 
+                                      + window.getSequence() 
+                                      + " of a range: " + e);
+                              failed[0] = true;
+                              return false;
+                          }
+                      }
+                  });
+
+                  return failed[0] ? -1 : count;
+              }
+              catch (IOException e)
+              {
+                  Log.e(TAG, "Could not query the history: " + e);
+                  return -1;
+              }
+          }
+
+          /**
+           * Returns the rollups of a time range from the coarsest
+           * tier that is fine enough.
+           *
+           * @param   startTime       first time in milliseconds
+           * @param   endTime         last time in milliseconds
+           * @param   resolution      longest bucket accepted in 
+           *                          milliseconds
+           * @return                  rollups oldest first, or null if
+           *                          they are not available
+           */
+          public List<Rollup> getRollups(long startTime, long endTime,
+                  long resolution)
+          {
+              if (mRollups == null)
+                  return null;
+
+              return mRollups.query(startTime, endTime, resolution,
+                      MAX_ROLLUPS);
+          }
+
+          /**
+           * Returns the activity recognized in the latest window.
+           *
+           * @return             result of the latest window, or null
+           *                     if no window was classified yet
+           */
+          public ActivityResult getLastActivity()
+          {
+             return mClassifier.getLatest();
+          }
+
+          /**
+           * Returns the activity recognized in a recent window.
+           *
+           * @param   sequence        sequence number of the window
+           * @return                  result of the window, or null if
+           *                          it is no longer cached
+           */
+          public ActivityResult getActivity(long sequence)
+          {
+             return mClassifier.get(sequence);
+          }
+
+          /**
+           * Returns the part of the latest recorded window meant for
+           * the given client: its reading length, at its rate.
+           *
+           * @param   callerName      String identifying the client
+           * @return                  latest recorded window
+           */
+          public AccelWindow getClientWindow(String callerName)
+          {
+              AccelWindow window = mLastWindow;
+
+              if (callerName == null)
+                  return window;
+
+              return mPublisher.clientWindow(callerName, window);
+          }
+
+          /**
+           * Same as getClientWindow() for a client registered with
+           * register().
+           *
+           * @param   handle          handle returned by register()
+           * @return                  latest recorded window, or null
+           *                          if the handle is not valid
+           */
+          public AccelWindow getClientWindowByHandle(int handle)
+          {
+              String callerName = mRegistry.nameOf(handle);
+
+              if (callerName == null)
+                  return null;
+
+              return mPublisher.clientWindow(callerName, mLastWindow);
+          }
+
+          /**
+           * Returns the sequence number of the latest recorded
+           * window. Clients can poll this cheaply to find out if a
+           * new window is available.
+           *
+           * @return             sequence number of the latest window
+           */
+          public long getLastSequence()
+          {
+             return mLastWindow.getSequence();
+          }
+
+          /**
+           * Registers a listener that is called as soon as new
+           * samples are available.
+           *
+           * @param   callerName      String identifying the client
+           * @param   listener        the listener to register
+           * @param   maxBatchSize    largest number of samples per
+           *                          batch, or zero to receive
+           *                          complete windows only
+           * @param   maxLatency      longest time in milliseconds a
+           *                          sample is held back before it
+           *                          is sent, or zero for no bound
+           * @return                  true if the listener was
+           *                          registered
+           */
+          public boolean registerListener(String callerName,
+                  IAccelListener listener, int maxBatchSize,
+                  long maxLatency)
+          {
+              if ((callerName == null) || (listener == null))
+                  return false;
+
+              Log.i(TAG, "Registering listener of " + callerName
+                      + " with batch size " + maxBatchSize);
+
+              return mPublisher.register(callerName, listener,
+                      maxBatchSize, maxLatency);
+          }
+
+          /**
+           * Same as registerListener() for a client registered with
+           * register().
+           *
+           * @param   handle          handle returned by register()
+           * @return                  true if the listener was
+           *                          registered, false if the handle
+           *                          is not valid
+           */
+          public boolean registerListenerByHandle(int handle,
+                  IAccelListener listener, int maxBatchSize,
+                  long maxLatency)
+          {
+              String callerName = mRegistry.nameOf(handle);
+
+              if (callerName == null)
+                  return false;
+
+              return registerListener(callerName, listener, 
+                      maxBatchSize, maxLatency);
+          }
+
+          /**
+           * Unregisters a listener.
+           *
+           * @param   listener        the listener to remove
+           */
+          public void unregisterListener(IAccelListener listener)
+          {
+              if (listener == null)
+                  return;
+
+              mPublisher.unregister(listener);
+          }
+
+          /**
+           * Returns true if the service is running.
+           *
+           * @return             running state of the service
+           */
+          public boolean isRunning()
+          {
+              return mIsRunning;
+          }
+		 
+          /**
+           * Starts the accelerometer service.
+           */
+          public void start(String callerName)
+          {
+              
+              if (callerName == null)
+                  return;
+
+              Log.i(TAG, "Received start() from " 
+                      + callerName);
+
+              startClient(callerName);
+          }
+
+          /**
+           * Same as start() for a client registered with register().
+           *
+           * @param   handle          handle returned by register()
+           */
+          public void startByHandle(int handle)
+          {
+              String callerName = mRegistry.nameOf(handle);
+
+              if (callerName == null)
+                  return;
+
+              Log.i(TAG, "Received start() from " 
+                      + callerName);
+
+              startClient(callerName);
+          }
+
+          /**
+           * Adds a client and returns its handle. The handle can be
+           * passed instead of the name to the methods whose name 
+           * ends with ByHandle. It is valid until the client calls
+           * stop().
+           *
+           * @param   callerName      String identifying the client
+           * @return                  handle of the client, or -1 if
+           *                          no more clients can be added
+           */
+          public int register(String callerName)
+          {
+              if (callerName == null)
+                  return -1;
+
+              int handle = mRegistry.register(callerName, 
+                      new ClientInfo());
+
+              ClientInfo client = mRegistry.get(handle);
+              if (client != null)
+                  updateDelivery(callerName, client);
+
+              // The defaults of the new client count like any change
+              adjustSettings();
+
+              Log.i(TAG, "Registered " + callerName + " as " + handle);
+
+              return handle;
+          }
+
+          /**
+           * Same as register(), and also watches the process of the
+           * client through the given token. The client is removed
+           * as if it called stop() when its process dies, or when it
+           * did not call renewLease() for leaseLength milliseconds.
+           *
+           * @param   callerName      String identifying the client
+           * @param   token           any binder object owned by the
+           *                          client process
+           * @param   leaseLength     length of the lease in 
+           *                          milliseconds, or zero if it 
+           *                          never expires
+           * @return                  handle of the client, or -1 if
+           *                          it could not be added
+           */
+          public int registerWithToken(String callerName, 
+                  IBinder token, long leaseLength)
+          {
+              if ((callerName == null) || (token == null))
+                  return -1;
+
+              int handle = register(callerName);
+              if (handle < 0)
+                  return -1;
+
+              Lease lease = new Lease(callerName, token, leaseLength);
+              try
+              {
+                  token.linkToDeath(lease, 0);
+              }
+              catch (RemoteException re)
+              {
+                  Log.i(TAG, callerName + " died before it registered");
+                  stopClient(callerName);
+                  return -1;
+              }
+
+              Lease old = mLeases.put(callerName, lease);
+              if (old != null)
+                  old.unlink();
+
+              // The lease runs out even if the client never starts
+              armAlarm();
+
+              return handle;
+          }
+
+          /**
+           * Extends the lease of a client by its lease length.
+           *
+           * @param   handle          handle returned by 
+           *                          registerWithToken()
+           * @return                  false if the handle is not 
+           *                          valid or has no lease
+           */
+          public boolean renewLease(int handle)
+          {
+              String callerName = mRegistry.nameOf(handle);
+
+              if (callerName == null)
+                  return false;
+
+              Lease lease = mLeases.get(callerName);
+              if (lease == null)
+                  return false;
+
+              lease.renew();
+              return true;
+          }
+          
+          /**
+          * Stops the accelerometer service to save maximum power.
+          */
+          public void stop(String callerName)
+          {
+
+              if (callerName == null)
+                  return;
+
+              Log.i(TAG, "Received stop() from " 
+                      + callerName);
+
+              stopClient(callerName);
+          }
+
+          /**
+           * Same as stop() for a client registered with register().
+           * The handle is no longer valid after this call.
+           *
+           * @param   handle          handle returned by register()
+           */
+          public void stopByHandle(int handle)
+          {
+              String callerName = mRegistry.nameOf(handle);
+
+              if (callerName == null)
+                  return;
+
+              Log.i(TAG, "Received stop() from " 
+                      + callerName);
+
+              stopClient(callerName);
+          }
+ 
+	};
 	
 	/*
 	 * Returns the binder object.
@@ -698,21 +1453,57 @@ public class AccelService extends Service
 	}
 	
 	/*
-	 * Handler object to manage self messages.
-	 * There are only two types of messages: SLEEP_TIMER_MSG 
-     * and READ_TIMER_MSG.
+	 * Handler object to manage self messages on the sensor thread.
+	 * START_CYCLE_MSG turns the sensor on, READ_TIMER_MSG starts the
+     * recording after warm-up, SLEEP_TIMER_MSG ends the window and
+     * STOP_SENSOR_MSG turns the sensor off when the last client left.
+     * SENTINEL_MSG applies a new sentinel setting between cycles.
+     *
+     * The sensor callbacks run on the same thread, so the recording
+     * state is only ever touched by this one thread.
 	 */
-    private final Handler mHandler = new Handler()
+    private Handler mHandler;
+
+    private class SensorHandler extends Handler
     {
+        SensorHandler(Looper looper)
+        {
+            super(looper);
+        }
+
         @Override
         public void handleMessage(Message msg)
         {
+            if (msg.what == STOP_SENSOR_MSG)
+            {
+                mSensorManager.unregisterListener(mSensorListener, 
+                    mSensorManager.getDefaultSensor(
+                        Sensor.TYPE_ACCELEROMETER));
+
+                mSensorRunning = false;
+                mRecordSensor = false;
+                mWarmupDetector.stop();
+                mSentinel.stop();
+
+                // A window being recorded is dropped
+                mPublisher.abortWindow();
+
+                if (mCpuLock.isHeld())
+                    mCpuLock.release();
+                return;
+            }
+
             // Discard the message if the service is not 
             // supposed to be running.
             if (!mIsRunning)
             {
                 Log.w(TAG, "Discarding internal message.");
                 //mAlarmManager.cancel(mAccelSender);
+
+                // A cycle may have been requested just as the last
+                // client left
+                if (mCpuLock.isHeld())
+                    mCpuLock.release();
                 return;
             }
 
@@ -726,16 +1517,64 @@ public class AccelService extends Service
                         mSensorManager.getDefaultSensor(
                             Sensor.TYPE_ACCELEROMETER));
                 
-                //mSensorRunning = false;
+                mSensorRunning = false;
                 mRecordSensor = false;
                 
-                // Time to copy temp lists to last lists
-                synchronized (mLastListX)
+                // Time to publish the recorded window
+                mWindowSequence++;
+                AccelWindow window = mTempBuffer.toWindow(
+                        mWindowSequence);
+                mPublisher.finishWindow(mWindowSequence, mTempBuffer);
+
+                // The features carry the sequence number, so they 
+                // may be seen just before the window itself
+                mLastFeatures = mFeatureAccumulator.toFeatures(
+                        mWindowSequence, mTempBuffer.getWallBase());
+                mFeatureAccumulator.reset();
+
+                int count = mTempBuffer.size();
+                if (count > 0)
+                    mClassifier.classify(mLastFeatures, 
+                            (mTempBuffer.timeAt(count - 1) 
+                             - mTempBuffer.timeAt(0)) / 1000000000.0);
+
+                // No spectrum once the last client dropped its bands
+                float[] frequencies = mBandFrequencies;
+                if (frequencies != null)
+                    mLastSpectrum = mSpectrumAnalyzer.analyze(
+                            mWindowSequence, mTempBuffer, frequencies);
+                else
+                    mLastSpectrum = null;
+
+                // The features already hold the force variance, so
+                // the gate needs no second pass over the samples
+                int level = mMotionGate.onWindow(
+                        mLastFeatures.getVariance(WindowFeatures.FORCE), 
+                        mTempBuffer.size());
+                if (mScheduler.setBackoff(level, 
+                            SystemClock.elapsedRealtime()))
+                {
+                    Log.v(TAG, "Motion detected. Back to the base "
+                            + "intervals");
+                    armAlarm();
+                }
+
+                if (mHistory != null)
+                    mHistoryHandler.obtainMessage(APPEND_MSG, window)
+                        .sendToTarget();
+                if (mRollups != null)
+                    mHistoryHandler.obtainMessage(ROLLUP_MSG, 
+                            mLastFeatures).sendToTarget();
+
+                if (mWindowQueue.offer(window))
+                {
+                    mPublishLock.acquire(PUBLISH_LOCK_TIMEOUT);
+                    mPublishHandler.sendEmptyMessage(PUBLISH_MSG);
+                }
+                else
                 {
-                    mLastForceList = mTempForceList;
-                    mLastListX = mTempListX;
-                    mLastListY = mTempListY;
-                    mLastListZ = mTempListZ;
+                    Log.w(TAG, "Publishing is behind. Dropped window "
+                            + mWindowSequence);
                 }
 
 
@@ -746,52 +1585,148 @@ public class AccelService extends Service
                 //            + " but running flag is not set.");
                 //}
 
-                if (mCpuLock.isHeld())
+                // The sentinel keeps the CPU awake until the next
+                // cycle
+                if (!startSentinel() && mCpuLock.isHeld())
                     mCpuLock.release();
 
             }
             else if (msg.what == READ_TIMER_MSG)
             {             
-                // Debug
-                Log.v(TAG, "Recording the sensor for "
-                        + mReadInterval + " milliseconds");
-            		
-                mJustStarted = true; 
-                mRecordSensor = true;
-
+                startRecording(false);
+            }
+            else if (msg.what == START_CYCLE_MSG)
+            {
+                sensorCycle();
             }
+            else if (msg.what == SENTINEL_MSG)
+            {
+                // A running session starts the sentinel when it ends
+                if (!mSensorRunning && !startSentinel())
+                    stopSentinel();
+            }
+
+        }
+
+    }
+
+    /*
+     * Handler object on the history thread. Appends the complete 
+     * windows to the history and merges their features into the 
+     * rollups, so the sensor thread never waits for the disk.
+     */
+    private class HistoryHandler extends Handler
+    {
+        HistoryHandler(Looper looper)
+        {
+            super(looper);
+        }
 
+        @Override
+        public void handleMessage(Message msg)
+        {
+            if (msg.what == APPEND_MSG)
+            {
+                AccelWindow window = (AccelWindow) msg.obj;
+
+                try
+                {
+                    mHistory.append(window);
+                }
+                catch (IOException e)
+                {
+                    Log.e(TAG, "Could not store window " 
+                            + window.getSequence() + ": " + e);
+                }
+            }
+            else if (msg.what == ROLLUP_MSG)
+            {
+                mRollups.add((WindowFeatures) msg.obj);
+            }
         }
+    }
+
+    /*
+     * Handler object on the main thread. Hands the complete windows 
+     * to the readers and the window listeners, so slow listeners 
+     * never delay the recording.
+     */
+    private final Handler mPublishHandler = new Handler()
+    {
+        @Override
+        public void handleMessage(Message msg)
+        {
+            AccelWindow window;
 
+            while ((window = mWindowQueue.poll()) != null)
+            {
+                mLastWindow = window;
+                mPublisher.publishWindow(window);
+            }
+
+            if (mPublishLock.isHeld())
+                mPublishLock.release();
+        }
     };
 
 
     /**
       * Triggers the sensor reading cycle.
       * Starts the sensor and also sends a message for the
-      * warmup interval.
+      * warmup interval. Runs on the sensor thread.
       */
     private void sensorCycle()
     {
 
-        //if (!mSensorRunning)
-        //{
-        Log.v(TAG, "Starting to warm up the sensor for "
-                + mWarmupInterval
-                + " milliseconds");
+        if (mSensorRunning)
+        {
+            // The clients that are due now are served by the
+            // session that is already running.
+            Log.i(TAG, "Sensor is already recording.");
+            return;
+        }
 
-        if (mAccelCounter.hasBudget())
+        if (mSentinel.isActive())
         {
-            mSensorManager.registerListener(mSensorListener, 
+            mSentinel.stop();
+            mSensorManager.unregisterListener(mSensorListener, 
                     mSensorManager.getDefaultSensor(
-                        Sensor.TYPE_ACCELEROMETER), 
-                    mRate);
+                        Sensor.TYPE_ACCELEROMETER));
+        }
+
+        ClientRegistry.Aggregate settings = mRegistry.aggregate();
+        int rate = settings.rate;
+        long warmup = settings.warmupInterval;
+        boolean adaptive = settings.adaptiveWarmup;
+
+        // The learned bound is only used once the device has been 
+        // measured often enough
+        if (adaptive)
+            warmup = mWarmupStats.bound(rate, warmup);
+
+        Log.v(TAG, "Starting to warm up the sensor for "
+                + (adaptive ? "at most " : "")
+                + warmup
+                + " milliseconds");
+
+        if (mAccelCounter.hasBudget())
+        {
+            mSensorManager.registerListener(mSensorListener, 
+                    mSensorManager.getDefaultSensor(
+                        Sensor.TYPE_ACCELEROMETER), 
+                    rate, mHandler);
+
+            mWarmupStart = SystemClock.uptimeMillis();
+            mWarmupRate = rate;
+
+            if (adaptive)
+                mWarmupDetector.start(rate);
 
             mHandler.sendMessageAtTime(
                     mHandler.obtainMessage(READ_TIMER_MSG),
-                    SystemClock.uptimeMillis() + mWarmupInterval);
+                    mWarmupStart + warmup);
 
-            //mSensorRunning = true;
+            mSensorRunning = true;
             mRecordSensor = false;
 
         }
@@ -799,15 +1734,242 @@ public class AccelService extends Service
         {
             Log.i(TAG, "Ran out of budget. Did not turn " +
                     "on the sensor.");
+
+            if (mCpuLock.isHeld())
+                mCpuLock.release();
+        }
+
+    }
+
+
+    /**
+     * Ends the warm-up and starts recording the window. Runs on the
+     * sensor thread.
+     *
+     * @param   stable      true if the adaptive warm-up found the
+     *                      samples stable, false if the warm-up 
+     *                      timer ran out
+     */
+    private void startRecording(boolean stable)
+    {
+        mHandler.removeMessages(READ_TIMER_MSG);
+
+        if (mWarmupDetector.isActive())
+        {
+            mWarmupDetector.stop();
+
+            long latency = SystemClock.uptimeMillis() - mWarmupStart;
+
+            // A timeout is not a settle time, it only backs off the
+            // bound
+            if (!stable)
+                mWarmupStats.timedOut(mWarmupRate);
+            else if (mWarmupStats.add(mWarmupRate, latency))
+                mHistoryHandler.post(mSaveWarmupStats);
+
+            Log.v(TAG, "Warm-up " + (stable ? "settled" : "timed out")
+                    + " after " + latency + " milliseconds");
+        }
+
+        // Debug
+        Log.v(TAG, "Recording the sensor for "
+                + mRegistry.aggregate().readInterval + " milliseconds");
+
+        mJustStarted = true; 
+        mRecordSensor = true;
+    }
+
+    /*
+     * Empties the buffer and the features for a new window. A window
+     * cut short by a stop leaves its samples in both, so they are
+     * always emptied together. Runs on the sensor thread.
+     */
+    private void startWindow(int rate, long length)
+    {
+        mTempBuffer.reset(rate, length, sampleRange());
+        mFeatureAccumulator.reset();
+    }
+
+    /*
+     * Returns the range to quantize the next window with, or zero to
+     * keep it as floats.
+     */
+    private float sampleRange()
+    {
+        return mRegistry.aggregate().quantized ? mSensorRange : 0.0f;
+    }
+
+    /**
+     * Records one sample of the current window. Runs on the sensor
+     * thread.
+     *
+     * @param   time        SensorEvent time-stamp in nanoseconds
+     * @param   force       magnitude of the sample in g
+     */
+    private void recordSample(long time, float x, float y, float z,
+            float force)
+    {
+        mTempBuffer.add(time, x, y, z, force);
+        mFeatureAccumulator.add(time, x, y, z, force);
+
+        mPublisher.onSample(mTempBuffer, mWindowSequence + 1);
+    }
+
+    /**
+     * Starts or updates the sentinel between two cycles. The 
+     * sentinel holds the CPU lock while it watches. Runs on the 
+     * sensor thread.
+     *
+     * @return              true if the sentinel is watching
+     */
+    private boolean startSentinel()
+    {
+        long threshold = mRegistry.aggregate().sentinelThreshold;
+
+        if ((threshold <= 0) || !mIsRunning 
+                || !mAccelCounter.hasBudget())
+            return false;
+
+        if (!mCpuLock.isHeld())
+            mCpuLock.acquire();
+
+        if (mSentinel.isActive())
+        {
+            mSentinel.setThreshold(threshold / 1000.0);
+            return true;
+        }
+
+        Log.v(TAG, "Starting the sentinel with a threshold of "
+                + threshold + " milli-g");
+
+        mSensorManager.registerListener(mSensorListener, 
+                mSensorManager.getDefaultSensor(
+                    Sensor.TYPE_ACCELEROMETER), 
+                SENTINEL_RATE, mHandler);
+        mSentinel.start(threshold / 1000.0);
+
+        return true;
+    }
+
+    /**
+     * Stops the sentinel and lets the CPU sleep until the next 
+     * cycle. Runs on the sensor thread.
+     */
+    private void stopSentinel()
+    {
+        if (!mSentinel.isActive())
+            return;
+
+        Log.v(TAG, "Stopping the sentinel");
+
+        mSentinel.stop();
+        mSensorManager.unregisterListener(mSensorListener, 
+                mSensorManager.getDefaultSensor(
+                    Sensor.TYPE_ACCELEROMETER));
+
+        if (mCpuLock.isHeld())
+            mCpuLock.release();
+    }
+
+    /**
+     * Switches from the sentinel to a capture at the fastest 
+     * requested rate. The window begins with the samples the 
+     * sentinel kept from before the trigger, interpolated at the
+     * nominal period of the capture rate, so that the whole window
+     * is evenly spaced at that rate. Runs on the sensor thread.
+     */
+    private void startCapture()
+    {
+        ClientRegistry.Aggregate settings = mRegistry.aggregate();
+        int rate = settings.rate;
+        long length = settings.captureLength;
+
+        mSentinel.stop();
+
+        Sensor sensor = mSensorManager.getDefaultSensor(
+                Sensor.TYPE_ACCELEROMETER);
+        mSensorManager.unregisterListener(mSensorListener, sensor);
+        mSensorManager.registerListener(mSensorListener, sensor,
+                rate, mHandler);
+
+        Log.v(TAG, "Sentinel triggered. Capturing for " + length
+                + " milliseconds");
+
+        // The pre-trigger samples end with the one that triggered.
+        // They are interpolated back from it at the capture period.
+        long period = ratePeriod(rate) * 1000000L;
+        long newest = mSentinel.timeAt(mSentinel.size() - 1);
+        int count = (int) ((newest - mSentinel.timeAt(0)) / period) + 1;
+        long first = newest - (count - 1) * period;
+
+        mSensorRunning = true;
+        startWindow(rate, length + (newest - first) / 1000000L);
+
+        // The newest kept sample is taken to be now
+        mTempBuffer.anchor(System.currentTimeMillis() 
+                - (newest - first) / 1000000L, first);
+
+        for (int i = 0; i < count; i++)
+        {
+            long time = first + i * period;
+
+            recordSample(time, 
+                    mSentinel.interpolate(WindowFeatures.X, time),
+                    mSentinel.interpolate(WindowFeatures.Y, time),
+                    mSentinel.interpolate(WindowFeatures.Z, time),
+                    mSentinel.interpolate(WindowFeatures.FORCE, time));
+        }
+
+        mJustStarted = false;
+        mRecordSensor = true;
+
+        mHandler.sendMessageAtTime(
+                mHandler.obtainMessage(SLEEP_TIMER_MSG),
+                SystemClock.uptimeMillis() + length);
+    }
+
+
+    /**
+     * Sets a one-shot alarm for the time the next client is due, or
+     * the next lease runs out if that is earlier. Setting the alarm
+     * replaces the previous one. Nothing is done if the alarm is 
+     * already set for that time.
+     */
+    private synchronized void armAlarm()
+    {
+        long nextWakeup = mIsRunning ? mScheduler.nextWakeup() : -1;
+
+        for (Lease lease : mLeases.values())
+        {
+            long expiry = lease.getExpiry();
+
+            if ((expiry >= 0) 
+                    && ((nextWakeup < 0) || (expiry < nextWakeup)))
+                nextWakeup = expiry;
         }
 
-        //}
-        //else
-        //{
-        //    Log.i(TAG, "Sensor is already recording.");
-        //}
+        if (nextWakeup == mArmedWakeup)
+            return;
+
+        mArmedWakeup = nextWakeup;
 
+        if (nextWakeup < 0)
+        {
+            mAlarmManager.cancel(mAccelSender);
+            return;
+        }
 
+        mAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                nextWakeup, mAccelSender);
+    }
+
+    /**
+     * Cancels the duty-cycle alarm.
+     */
+    private synchronized void cancelAlarm()
+    {
+        mAlarmManager.cancel(mAccelSender);
+        mArmedWakeup = -1;
     }
 
 
@@ -840,11 +2002,29 @@ public class AccelService extends Service
                 if (action.equals(ACCEL_ALARM_ACTION))
                 {
                     //Log.i(TAG, "ACCEL_ALARM_ACTION it is.");
-                    if (!mCpuLock.isHeld())
-                        mCpuLock.acquire(); // Released after sensor
-                                            // reading is over
+                    long now = SystemClock.elapsedRealtime();
+
+                    // The alarm may be only for an expiring lease
+                    pruneLeases(now);
+                    int due = mIsRunning ? mScheduler.collectDue(now) 
+                        : 0;
+
+                    // The alarm that woke us up is used up
+                    cancelAlarm();
+                    armAlarm();
+
+                    if (due > 0)
+                    {
+                        Log.v(TAG, "Reading the sensor for " + due
+                                + " clients");
 
-                    sensorCycle();
+                        if (!mCpuLock.isHeld())
+                            mCpuLock.acquire(); // Released after 
+                                                // sensor reading is
+                                                // over
+
+                        mHandler.sendEmptyMessage(START_CYCLE_MSG);
+                    }
                 }
             }
         }
@@ -864,148 +2044,577 @@ public class AccelService extends Service
     public void onCreate() {
         super.onCreate();
 
-        Log.setAppName(APP_NAME);
-        bindService(new Intent(ISystemLog.class.getName()),
-                Log.SystemLogConnection, Context.BIND_AUTO_CREATE);
-     
-        bindService(new Intent(IPowerMonitor.class.getName()),
-                mPowerMonitorConnection, Context.BIND_AUTO_CREATE);
- 
+        Log.setAppName(APP_NAME);
+        bindService(new Intent(ISystemLog.class.getName()),
+                Log.SystemLogConnection, Context.BIND_AUTO_CREATE);
+     
+        bindService(new Intent(IPowerMonitor.class.getName()),
+                mPowerMonitorConnection, Context.BIND_AUTO_CREATE);
+ 
+
+        Log.i(TAG, "onCreate");
+
+        mSensorRunning = false;
+
+        mRegistry = new ClientRegistry();
+        mApplied.set(mRegistry.aggregate());
+        mScheduler = new DutyCycleScheduler();
+
+        // Window numbers continue after the stored windows
+        try
+        {
+            mHistory = new WindowHistory(new File(getFilesDir(),
+                        HISTORY_DIR_NAME), HISTORY_SEGMENT_SIZE,
+                    HISTORY_SEGMENTS);
+            mWindowSequence = mHistory.getLastSequence();
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Window history is not available: " + e);
+            mHistory = null;
+        }
+
+        try
+        {
+            mRollups = new RollupHistory(new File(getFilesDir(),
+                        ROLLUP_DIR_NAME));
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Rollups are not available: " + e);
+            mRollups = null;
+        }
+     
+        resetToDefault();
+        mSensorManager = (SensorManager) getSystemService(
+                Context.SENSOR_SERVICE);
+
+        Sensor sensor = mSensorManager.getDefaultSensor(
+                Sensor.TYPE_ACCELEROMETER);
+        if ((sensor != null) && (sensor.getMaximumRange() > 0.0f))
+            mSensorRange = sensor.getMaximumRange();
+        
+		
+        mAccelCounter = new AccelCounter();
+
+        mPublisher = new AccelPublisher();
+
+        PowerManager pm = (PowerManager) getSystemService(
+                Context.POWER_SERVICE);
+        mCpuLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                APP_NAME);
+        mCpuLock.setReferenceCounted(false);
+
+        mPublishLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                APP_NAME + "Publish");
+        mPublishLock.setReferenceCounted(false);
+
+        // Samples are recorded away from the main thread, which
+        // also runs the alarm intents and the window listeners
+        mSensorThread = new HandlerThread("AccelSensor",
+                Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mSensorThread.start();
+        mHandler = new SensorHandler(mSensorThread.getLooper());
+
+        mHistoryThread = new HandlerThread("AccelHistory",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mHistoryThread.start();
+        mHistoryHandler = new HistoryHandler(mHistoryThread.getLooper());
+
+        mWarmupStats = new WarmupStats(getSharedPreferences(
+                    WARMUP_PREFS_NAME, Context.MODE_PRIVATE));
+
+
+        mAlarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+
+        // Repeating alarm for Accel dutycycling
+        Intent accelAlarmIntent = new Intent(AccelService.this,
+                AccelService.class);
+        accelAlarmIntent.setAction(ACCEL_ALARM_ACTION);
+        mAccelSender = PendingIntent.getService(AccelService.this, 0,
+                accelAlarmIntent, 0);
+
+        
+
+    }
+    
+    /*
+     * Called to clean up.
+     * If the sensor is running we stop it.
+     * @see android.app.Service#onDestroy()
+     */
+    @Override
+    public void onDestroy()
+    {
+    	Log.i(TAG, "onDestroy");
+
+        Log.i(TAG, "Stopping the service");
+        cancelAlarm();
+        mHandler.removeMessages(SLEEP_TIMER_MSG);
+        mHandler.removeMessages(READ_TIMER_MSG);
+        mHandler.removeMessages(START_CYCLE_MSG);
+        mHandler.removeMessages(SENTINEL_MSG);
+        
+        mSensorManager.unregisterListener(mSensorListener, 
+           mSensorManager.getDefaultSensor(
+               Sensor.TYPE_ACCELEROMETER));
+
+        finishThread(mSensorThread, mHandler, null);
+
+        // Stores the windows still queued and keeps the warm-up 
+        // latencies measured since the last save before the thread 
+        // ends
+        finishThread(mHistoryThread, mHistoryHandler, new Runnable()
+        {
+            public void run()
+            {
+                if (mHistory != null)
+                    mHistory.close();
+                if (mRollups != null)
+                    mRollups.close();
+                mWarmupStats.save();
+            }
+        });
+        
+        mPublisher.kill();
+
+        for (Lease lease : mLeases.values())
+            lease.unlink();
+        mLeases.clear();
+
+        if (mCpuLock.isHeld())
+            mCpuLock.release();
+        if (mPublishLock.isHeld())
+            mPublishLock.release();
+        
+        //mSensorRunning = false;
+
+
+    	super.onDestroy();
+
+        unbindService(Log.SystemLogConnection);
+    	
+    	//if (mSensorRunning)
+        mSensorManager.unregisterListener(mSensorListener);
+    	
+    }
+    
+    /*
+     * Runs a last task, if any, on a worker thread after the messages
+     * already queued there, then ends the thread and waits for it. 
+     * Looper.quit() cannot be called from here, since it drops the
+     * messages that are still queued.
+     */
+    private void finishThread(HandlerThread thread, Handler handler,
+            final Runnable last)
+    {
+        handler.post(new Runnable()
+        {
+            public void run()
+            {
+                if (last != null)
+                    last.run();
+                Looper.myLooper().quit();
+            }
+        });
+
+        try
+        {
+            thread.join(THREAD_JOIN_TIMEOUT);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (thread.isAlive())
+            Log.w(TAG, thread.getName() + " did not end in time");
+    }
+
+    /*
+     * Sets all the running parameters to default values
+     */
+    private void resetToDefault()
+    {
+        Log.i(TAG, "Resetting variables to default");
+    	/** Sleep interval value. By default set to one minutes */
+    	mSleepInterval = DEFAULT_SLEEP_INTERVAL;
+            
+
+        ClientRegistry.Aggregate settings = mRegistry.aggregate();
+        mTempBuffer = new SampleBuffer(settings.rate, 
+                settings.readInterval);
+        mLastWindow = mTempBuffer.toWindow(mWindowSequence);
+        mLastFeatures = mFeatureAccumulator.toFeatures(mWindowSequence,
+                mTempBuffer.getWallBase());
+
+
+    	
+    }
+
+
+    /*
+     * Passes the rate and reading length of a client to the
+     * publisher.
+     */
+    private void updateDelivery(String callerName, ClientInfo client)
+    {
+        mPublisher.setClient(callerName, client.rate, 
+                client.readInterval);
+    }
+
+    /*
+     * Logs the first call of a client that did not call start().
+     */
+    private void noteClient(String callerName)
+    {
+        if (!mRegistry.contains(callerName))
+            Log.i(TAG, "Client " + callerName + 
+                    " not recognized. Adding it.");
+    }
+
+    /*
+     * Applies the new rate of a client. Returns the rate the client
+     * receives samples at, or -1 if the client is not known.
+     */
+    private int rateChanged(String callerName, ClientInfo client)
+    {
+        if ((callerName == null) || (client == null))
+            return -1;
+
+        Log.v(TAG, "Rate of " + callerName + " set to " + client.rate);
+
+        updateDelivery(callerName, client);
+        adjustSettings();
+
+        return client.rate;
+    }
+
+    /*
+     * Applies the new reading length of a client. Returns the 
+     * reading length of the service, or -1 if the client is not 
+     * known.
+     */
+    private long readIntervalChanged(String callerName, 
+            ClientInfo client)
+    {
+        if ((callerName == null) || (client == null))
+            return -1;
+
+        Log.v(TAG, "Read length set to " + client.readInterval 
+                + " by " + callerName);
+
+        updateDelivery(callerName, client);
+        adjustSettings();
+
+        return mRegistry.aggregate().readInterval;
+    }
+
+    /*
+     * Applies the new warm-up length of a client. Returns the 
+     * warm-up length of the service, or -1 if the client is not 
+     * known.
+     */
+    private long warmupIntervalChanged(String callerName, 
+            ClientInfo client)
+    {
+        if ((callerName == null) || (client == null))
+            return -1;
+
+        Log.v(TAG, "Warmup interval set to " + client.warmupInterval
+                + " by " + callerName);
+
+        adjustSettings();
+
+        return mRegistry.aggregate().warmupInterval;
+    }
+
+    /*
+     * Applies the new backoff ceiling of a client. Returns the 
+     * ceiling, or -1 if the client is not known.
+     */
+    private long maxSleepIntervalChanged(String callerName, 
+            ClientInfo client)
+    {
+        if ((callerName == null) || (client == null))
+            return -1;
+
+        Log.v(TAG, "Motion backoff of " + callerName + " set to " 
+                + client.maxSleepInterval);
+
+        mScheduler.setInterval(callerName, client.sleepInterval,
+                client.maxSleepInterval, SystemClock.elapsedRealtime());
+
+        if (mIsRunning)
+            armAlarm();
+
+        return client.maxSleepInterval;
+    }
+
+    /*
+     * Replaces the Goertzel frequencies of a client. Returns false 
+     * if the client is not known or a frequency is not valid.
+     */
+    private boolean spectralBandsChanged(String callerName, 
+            float[] frequencies)
+    {
+        if (callerName == null)
+            return false;
+
+        if (frequencies == null)
+        {
+            Log.v(TAG, callerName + " no longer needs the spectrum");
+            mSpectralBands.remove(callerName);
+        }
+        else
+        {
+            for (float frequency : frequencies)
+                if (!(frequency > 0.0f) || Float.isInfinite(frequency))
+                    return false;
+
+            Log.v(TAG, callerName + " asked for the spectrum with " 
+                    + frequencies.length + " Goertzel filters");
+            mSpectralBands.put(callerName, frequencies.clone());
+        }
+
+        adjustSpectralBands();
+        return true;
+    }
+
+    /*
+     * Applies the new sentinel settings of a client. Returns the 
+     * capture length, or -1 if the client is not known.
+     */
+    private long sentinelChanged(String callerName, ClientInfo client)
+    {
+        if ((callerName == null) || (client == null))
+            return -1;
+
+        Log.v(TAG, "Sentinel of " + callerName + " set to " 
+                + client.sentinelThreshold + " milli-g, capturing " 
+                + client.captureLength + " milliseconds");
+
+        adjustSettings();
+
+        return client.captureLength;
+    }
+
+    /*
+     * Applies the new warm-up mode of a client. Returns true if the
+     * service uses the adaptive warm-up.
+     */
+    private boolean warmupModeChanged(String callerName, 
+            ClientInfo client)
+    {
+        if ((callerName == null) || (client == null))
+            return false;
+
+        Log.v(TAG, "Adaptive warm-up " 
+                + (client.adaptiveWarmup ? "enabled" : "disabled")
+                + " by " + callerName);
+
+        adjustSettings();
 
-        Log.i(TAG, "onCreate");
+        return mRegistry.aggregate().adaptiveWarmup;
+    }
 
-        //mSensorRunning = false;
+    /*
+     * Applies the new sample mode of a client. Returns true if the
+     * service quantizes the samples.
+     */
+    private boolean sampleModeChanged(String callerName, 
+            ClientInfo client)
+    {
+        if ((callerName == null) || (client == null))
+            return false;
 
-        mClientsMap = new Hashtable<String, ClientInfo>();
-     
-        resetToDefault();
-        mSensorManager = (SensorManager) getSystemService(
-                Context.SENSOR_SERVICE);
-        
-		
-        mAccelCounter = new AccelCounter();
+        Log.v(TAG, "Quantized samples " 
+                + (client.quantized ? "accepted" : "refused")
+                + " by " + callerName);
 
-        PowerManager pm = (PowerManager) getSystemService(
-                Context.POWER_SERVICE);
-        mCpuLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
-                APP_NAME);
-        mCpuLock.setReferenceCounted(false);
+        adjustSettings();
 
+        return mRegistry.aggregate().quantized;
+    }
 
-        mAlarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+    /*
+     * Applies the new sleep interval of a client. Returns the 
+     * interval of the client, or -1 if the client is not known.
+     */
+    private long sleepIntervalChanged(String callerName, 
+            ClientInfo client)
+    {
+        if ((callerName == null) || (client == null))
+            return -1;
 
-        // Repeating alarm for Accel dutycycling
-        Intent accelAlarmIntent = new Intent(AccelService.this,
-                AccelService.class);
-        accelAlarmIntent.setAction(ACCEL_ALARM_ACTION);
-        mAccelSender = PendingIntent.getService(AccelService.this, 0,
-                accelAlarmIntent, 0);
+        Log.v(TAG, "Got interval suggestion of " 
+                + client.sleepInterval + " from " + callerName);
 
-        
+        mScheduler.setInterval(callerName, client.sleepInterval,
+                client.maxSleepInterval, SystemClock.elapsedRealtime());
+        adjustSleepInterval();
 
+        return client.sleepInterval;
     }
-    
+
     /*
-     * Called to clean up.
-     * If the sensor is running we stop it.
-     * @see android.app.Service#onDestroy()
+     * Applies all the new parameters of a client at once. Returns
+     * false if the client is not known.
      */
-    @Override
-    public void onDestroy()
+    private boolean configured(String callerName, ClientInfo client)
     {
-    	Log.i(TAG, "onDestroy");
+        if ((callerName == null) || (client == null))
+            return false;
 
-        Log.i(TAG, "Stopping the service");
-        mAlarmManager.cancel(mAccelSender);
-        mHandler.removeMessages(SLEEP_TIMER_MSG);
-        mHandler.removeMessages(READ_TIMER_MSG);
-        
-        mSensorManager.unregisterListener(mSensorListener, 
-           mSensorManager.getDefaultSensor(
-               Sensor.TYPE_ACCELEROMETER));
-        
-        
-        //mSensorRunning = false;
+        Log.v(TAG, "Configured " + callerName + ": rate " 
+                + client.rate + ", interval " 
+                + client.sleepInterval + ", warmup " 
+                + client.warmupInterval + ", read " 
+                + client.readInterval);
 
+        updateDelivery(callerName, client);
+        mScheduler.setInterval(callerName, client.sleepInterval,
+                client.maxSleepInterval, SystemClock.elapsedRealtime());
 
-    	super.onDestroy();
+        adjustSettings();
+        adjustSleepInterval();
 
-        unbindService(Log.SystemLogConnection);
-    	
-    	//if (mSensorRunning)
-        mSensorManager.unregisterListener(mSensorListener);
-    	
+        return true;
     }
-    
+
     /*
-     * Sets all the running parameters to default values
+     * Removes the clients whose lease expired.
      */
-    private void resetToDefault()
+    private void pruneLeases(long now)
     {
-        Log.i(TAG, "Resetting variables to default");
-    	/** Sensor reading rate. Default rate is set to GAME */
-    	mRate = DEFAULT_RATE;
-    	
-    	/** Sleep interval value. By default set to one minutes */
-    	mSleepInterval = DEFAULT_SLEEP_INTERVAL;
-    	
-    	/** Reading interval value. By default set to one second */
-    	mReadInterval = DEFAULT_READ_INTERVAL;
+        for (Lease lease : mLeases.values())
+        {
+            if (lease.isExpired(now) 
+                    && (mLeases.get(lease.callerName) == lease))
+            {
+                Log.i(TAG, "Lease of " + lease.callerName 
+                        + " expired. Removing it.");
+                stopClient(lease.callerName);
+            }
+        }
+    }
 
-        mWarmupInterval = DEFAULT_WARMUP_INTERVAL;
-            
+    /*
+     * Adds a client if it is new, and schedules its readings.
+     */
+    private void startClient(String callerName)
+    {
+        ClientInfo client = new ClientInfo();
+        if (mRegistry.add(callerName, client))
+            updateDelivery(callerName, client);
+        else
+            client = mRegistry.get(callerName);
 
-        mLastForceList = new ArrayList<Double>();
-        mLastListX = new ArrayList<Double>();
-        mLastListY = new ArrayList<Double>();
-        mLastListZ = new ArrayList<Double>();
+        if (client != null)
+            mScheduler.setInterval(callerName, client.sleepInterval,
+                    client.maxSleepInterval, 
+                    SystemClock.elapsedRealtime());
 
+        Log.i(TAG, "Client count is " + mRegistry.size());
 
-        /*
-        synchronized(mLastListX)
+        adjustSettings();
+        adjustSleepInterval();
+
+        // Clients may have been added by the setters before
+        // start() was called, so do not rely on the count.
+        if (!mIsRunning)
+        {
+            Log.i(TAG, "Starting the service");
+            mIsRunning = true;
+            armAlarm();
+        }
+        else
         {
-            mLastForceList = null;
-            mLastListX = null;
-            mLastListY = null;
-            mLastListZ = null;
+            Log.i(TAG, "Already running");
+            armAlarm();
         }
-        */
+    }
+
+    /*
+     * Removes a client. Stops the sensor if it was the last one.
+     */
+    private void stopClient(String callerName)
+    {
+        Lease lease = mLeases.remove(callerName);
+        if (lease != null)
+            lease.unlink();
 
+        if (mSpectralBands.remove(callerName) != null)
+            adjustSpectralBands();
 
-    	
+        if (mRegistry.remove(callerName) == null)
+            return;
+
+        mPublisher.removeClient(callerName);
+        mScheduler.remove(callerName);
+
+        int clientCount = mRegistry.size();
+
+        Log.i(TAG, "Client count is " + clientCount);
+
+        if ((clientCount == 0) && (mIsRunning))
+        {
+            Log.i(TAG, "Stopping the service");
+            mIsRunning = false;
+            cancelAlarm();
+            mHandler.removeMessages(SLEEP_TIMER_MSG);
+            mHandler.removeMessages(READ_TIMER_MSG);
+            mHandler.removeMessages(START_CYCLE_MSG);
+            mHandler.removeMessages(SENTINEL_MSG);
+
+            // The sensor state belongs to the sensor thread
+            mHandler.sendEmptyMessage(STOP_SENSOR_MSG);
+        }
+        else
+        {
+            Log.i(TAG, "Still need to continue running.");
+            adjustSettings();
+            adjustSleepInterval();
+        }
     }
 
 
     /*
-     * Returns the greates common devisor.
+     * Returns the nominal time between two samples in milliseconds
+     * for the given sensor rate constant.
      */
-    private long gcd(long a, long b) 
+    static long ratePeriod(int rate)
     {
-        if (b==0) 
-            return a;
-        else
-            return gcd(b, a % b);
+        switch (rate)
+        {
+        case SensorManager.SENSOR_DELAY_FASTEST:
+            return FASTEST_PERIOD;
+        case SensorManager.SENSOR_DELAY_GAME:
+            return GAME_PERIOD;
+        case SensorManager.SENSOR_DELAY_UI:
+            return UI_PERIOD;
+        case SensorManager.SENSOR_DELAY_NORMAL:
+        default:
+            return NORMAL_PERIOD;
+        }
     }
 
-  
+
     /*
-     * Used internally to modify sleep interval.
-     * For now does nothing but applying the change. But in future will 
-     * implement the power adaptation logic.
+     * Used internally after the sleep interval of a client changed.
+     * The schedule of every client is kept by mScheduler. This 
+     * re-arms the alarm for the next due client and updates the
+     * reported interval.
      * 
-     * @param 		interval 		suggested interval in miliseconds
-     * @return						final applied value
+     * @return						shortest interval of all clients
      * 
      */
     private long adjustSleepInterval()
     {
-        long interval, curInterval = mSleepInterval;
+        long curInterval = mScheduler.minInterval();
 
-        for (ClientInfo client : mClientsMap.values())
-        {
-            interval = client.sleepInterval;
-            curInterval = gcd(curInterval, interval);
-        }
+        if (curInterval < 0)
+            curInterval = DEFAULT_SLEEP_INTERVAL;
 
         if (mSleepInterval != curInterval)
         {
@@ -1014,158 +2623,427 @@ public class AccelService extends Service
         }
 
         if (mIsRunning)
-        {
-            mAlarmManager.cancel(mAccelSender);
-            mAlarmManager.setRepeating(
-                AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                SystemClock.elapsedRealtime(),
-                mSleepInterval, 
-                mAccelSender);
-        }
+            armAlarm();
 
     	
     	return mSleepInterval;
     }
 
 
-    private long adjustWarmupInterval()
+    /*
+     * Reports the settings that follow from all the clients: the
+     * fastest rate, the longest warm-up and reading lengths, the
+     * warm-up and sample modes and the sentinel. The service reads
+     * them from the Aggregate of the registry, so a change is in 
+     * effect as soon as its Aggregate is swapped in, and this only
+     * logs what changed and wakes the sensor thread for the sentinel.
+     * mApplied is moved forward with compare-and-swap, only to a 
+     * newer version, so racing binder threads report every change
+     * once and never go back to an older snapshot.
+     */
+    private void adjustSettings()
     {
+        ClientRegistry.Aggregate old, aggregate;
 
-        long interval, curInterval = -1;
-
-        for (ClientInfo client : mClientsMap.values())
+        do
         {
-            interval = client.warmupInterval;
-            if (curInterval < interval)
-                curInterval = interval;
-        }
+            old = mApplied.get();
+            aggregate = mRegistry.aggregate();
 
-        if (mWarmupInterval != curInterval)
-        {
-            mWarmupInterval = curInterval;
-            Log.v(TAG, "Warmup length set to " + mWarmupInterval);
+            if (aggregate.version <= old.version)
+                return;
         }
+        while (!mApplied.compareAndSet(old, aggregate));
 
-        return mWarmupInterval;
-    }
+        if (old.rate != aggregate.rate)
+            Log.i(TAG, "Rate set to " + aggregate.rate);
 
-    private long adjustReadInterval()
-    {
-        long interval, curInterval = -1;
+        if (old.warmupInterval != aggregate.warmupInterval)
+            Log.v(TAG, "Warmup length set to " 
+                    + aggregate.warmupInterval);
 
-        for (ClientInfo client : mClientsMap.values())
-        {
-            interval = client.readInterval;
-            if (curInterval < interval)
-                curInterval = interval;
-        }
+        if (old.adaptiveWarmup != aggregate.adaptiveWarmup)
+            Log.i(TAG, "Adaptive warm-up " 
+                    + (aggregate.adaptiveWarmup ? "enabled" : "disabled"));
 
-        if (mReadInterval != curInterval)
+        if (old.readInterval != aggregate.readInterval)
+            Log.i(TAG, "Read interval changed to " 
+                    + aggregate.readInterval);
+
+        // Quantizes the samples from the next window on
+        if (old.quantized != aggregate.quantized)
+            Log.i(TAG, "Quantized samples " 
+                    + (aggregate.quantized ? "enabled" : "disabled"));
+
+        // The sensor thread applies the sentinel between cycles
+        if ((old.sentinelThreshold != aggregate.sentinelThreshold) 
+                || (old.captureLength != aggregate.captureLength))
         {
-            mReadInterval = curInterval;
-            Log.i(TAG, "Read interval changed to " + mReadInterval);
+            Log.i(TAG, "Sentinel threshold set to " 
+                    + aggregate.sentinelThreshold
+                    + " milli-g, capture length to " 
+                    + aggregate.captureLength);
+
+            if (mIsRunning)
+                mHandler.sendEmptyMessage(SENTINEL_MSG);
         }
-        return mReadInterval;
     }
-    
+
     /*
-     * Used internally to modify the sampling rate.
-     * For now does nothing but applying the change. But in future will 
-     * implement the power adaptation logic.
-     * 
-     * @param 		interval 		suggested interval in miliseconds
-     * @return						final applied value
-     * 
+     * Merges the Goertzel frequencies of all the spectrum clients.
+     * Synchronized so that two binder threads cannot publish the 
+     * merges in the wrong order.
      */
-    private int adjustRate()
+    private synchronized void adjustSpectralBands()
     {
-        int rate, curRate = Integer.MAX_VALUE;
-
-        for (ClientInfo client : mClientsMap.values())
+        if (mSpectralBands.isEmpty())
         {
-            rate = client.rate;
-            if (curRate > rate)
-                curRate = rate;
+            if (mBandFrequencies != null)
+                Log.i(TAG, "Spectrum turned off");
+            mBandFrequencies = null;
+            mLastSpectrum = null;
+            return;
         }
 
-        if (mRate != curRate)
-        {
-            mRate = curRate;
-            Log.i(TAG, "Rate set to " + mRate);
-        }
-		return mRate;
+        TreeSet<Float> merged = new TreeSet<Float>();
+        for (float[] frequencies : mSpectralBands.values())
+            for (float frequency : frequencies)
+                merged.add(frequency);
+
+        float[] union = new float[merged.size()];
+        int i = 0;
+        for (Float frequency : merged)
+            union[i++] = frequency;
+
+        mBandFrequencies = union;
+        Log.i(TAG, "Spectrum computed with " + union.length 
+                + " Goertzel filters");
     }
 
 
-    class ClientInfo
+    /**
+     * Settings of one client. Instances are never changed, a change
+     * makes a new instance.
+     */
+    static class ClientInfo
     {
-        public int rate;
-        public long sleepInterval;
-        public long warmupInterval;
-        public long readInterval;
+        public final int rate;
+        public final long sleepInterval;
+        public final long warmupInterval;
+        public final long readInterval;
+
+        /** Set if the warm-up may end as soon as the sensor settles */
+        public final boolean adaptiveWarmup;
+
+        /** 
+         * Longest sleep interval while the device does not move, or
+         * zero to always use sleepInterval
+         */
+        public final long maxSleepInterval;
+
+        /** 
+         * Deviation from 1 g that starts a capture, in milli-g, or
+         * zero if the client does not use the sentinel
+         */
+        public final long sentinelThreshold;
+
+        /** Length of a capture started by the sentinel */
+        public final long captureLength;
+
+        /** Set if the client accepts samples kept as 16-bit steps */
+        public final boolean quantized;
 
 
         ClientInfo()
         {
-            this.rate = DEFAULT_RATE;
-            this.sleepInterval = DEFAULT_SLEEP_INTERVAL;
-            this.readInterval = DEFAULT_READ_INTERVAL;
-            this.warmupInterval = DEFAULT_WARMUP_INTERVAL;
+            this(DEFAULT_RATE, DEFAULT_SLEEP_INTERVAL,
+                    DEFAULT_WARMUP_INTERVAL, DEFAULT_READ_INTERVAL,
+                    false, 0, 0, DEFAULT_READ_INTERVAL, false);
+        }
+
+        private ClientInfo(int rate, long sleepInterval,
+                long warmupInterval, long readInterval,
+                boolean adaptiveWarmup, long maxSleepInterval,
+                long sentinelThreshold, long captureLength,
+                boolean quantized)
+        {
+            this.rate = rate;
+            this.sleepInterval = sleepInterval;
+            this.warmupInterval = warmupInterval;
+            this.readInterval = readInterval;
+            this.adaptiveWarmup = adaptiveWarmup;
+            this.maxSleepInterval = maxSleepInterval;
+            this.sentinelThreshold = sentinelThreshold;
+            this.captureLength = captureLength;
+            this.quantized = quantized;
         }
 
 
-        public void setReadInterval(long length)
+        public ClientInfo withReadInterval(long length)
         {
-            if (length > 0)
-                readInterval = length;
-            else
-                warmupInterval = DEFAULT_WARMUP_INTERVAL;
+            if (length <= 0)
+                length = DEFAULT_READ_INTERVAL;
+
+            return new ClientInfo(rate, sleepInterval, 
+                    warmupInterval, length, adaptiveWarmup, maxSleepInterval,
+                    sentinelThreshold, captureLength, quantized);
         }
 
 
-        public void setWarmupInterval(long length)
+        public ClientInfo withWarmupInterval(long length)
         {
-            if (length >= 0)
-                warmupInterval = length;
-            else
-                warmupInterval = DEFAULT_WARMUP_INTERVAL;
+            if (length < 0)
+                length = DEFAULT_WARMUP_INTERVAL;
+
+            return new ClientInfo(rate, sleepInterval, length, 
+                    readInterval, adaptiveWarmup, maxSleepInterval,
+                    sentinelThreshold, captureLength, quantized);
         }
 
 
-        public void setRate(int newrate)
+        public ClientInfo withRate(int newrate)
         {
             switch (newrate)
             {
             case SensorManager.SENSOR_DELAY_FASTEST:
-                mRate = SensorManager.SENSOR_DELAY_FASTEST;
-                break;
             case SensorManager.SENSOR_DELAY_GAME:
-                mRate = SensorManager.SENSOR_DELAY_GAME;
-                break;
             case SensorManager.SENSOR_DELAY_NORMAL:
-                mRate = SensorManager.SENSOR_DELAY_NORMAL;
-                break;
             case SensorManager.SENSOR_DELAY_UI:
-                mRate = SensorManager.SENSOR_DELAY_UI;
                 break;
             default:
-                mRate = DEFAULT_RATE;
+                newrate = DEFAULT_RATE;
                 break;
             }
+
+            return new ClientInfo(newrate, sleepInterval, 
+                    warmupInterval, readInterval, adaptiveWarmup, maxSleepInterval,
+                    sentinelThreshold, captureLength, quantized);
         }
 
-        public void setSleepInterval(long interval)
+        public ClientInfo withSleepInterval(long interval)
         {
             if (interval < ONE_SECOND)
+                interval = DEFAULT_SLEEP_INTERVAL;
+
+            return new ClientInfo(rate, interval, warmupInterval,
+                    readInterval, adaptiveWarmup, maxSleepInterval,
+                    sentinelThreshold, captureLength, quantized);
+        }
+
+        public ClientInfo withAdaptiveWarmup(boolean enabled)
+        {
+            return new ClientInfo(rate, sleepInterval, warmupInterval,
+                    readInterval, enabled, maxSleepInterval,
+                    sentinelThreshold, captureLength, quantized);
+        }
+
+        public ClientInfo withMaxSleepInterval(long interval)
+        {
+            if (interval < 0)
+                interval = 0;
+
+            return new ClientInfo(rate, sleepInterval, warmupInterval,
+                    readInterval, adaptiveWarmup, interval,
+                    sentinelThreshold, captureLength, quantized);
+        }
+
+        public ClientInfo withSentinel(long threshold, long length)
+        {
+            if (threshold < 0)
+                threshold = 0;
+            if (length <= 0)
+                length = DEFAULT_READ_INTERVAL;
+
+            return new ClientInfo(rate, sleepInterval, warmupInterval,
+                    readInterval, adaptiveWarmup, maxSleepInterval,
+                    threshold, length, quantized);
+        }
+
+        public ClientInfo withQuantized(boolean enabled)
+        {
+            return new ClientInfo(rate, sleepInterval, warmupInterval,
+                    readInterval, adaptiveWarmup, maxSleepInterval,
+                    sentinelThreshold, captureLength, enabled);
+        }
+
+
+        static ClientRegistry.Change rateChange(final int rate)
+        {
+            return new ClientRegistry.Change()
             {
-                this.sleepInterval =  DEFAULT_SLEEP_INTERVAL;
-            }
-            else
+                public ClientInfo apply(ClientInfo client)
+                {
+                    return client.withRate(rate);
+                }
+            };
+        }
+
+        static ClientRegistry.Change sleepChange(final long interval)
+        {
+            return new ClientRegistry.Change()
             {
-                mSleepInterval = interval;
-            }
+                public ClientInfo apply(ClientInfo client)
+                {
+                    return client.withSleepInterval(interval);
+                }
+            };
+        }
+
+        static ClientRegistry.Change warmupChange(final long length)
+        {
+            return new ClientRegistry.Change()
+            {
+                public ClientInfo apply(ClientInfo client)
+                {
+                    return client.withWarmupInterval(length);
+                }
+            };
+        }
+
+        static ClientRegistry.Change readChange(final long length)
+        {
+            return new ClientRegistry.Change()
+            {
+                public ClientInfo apply(ClientInfo client)
+                {
+                    return client.withReadInterval(length);
+                }
+            };
         }
 
+        static ClientRegistry.Change maxSleepChange(final long interval)
+        {
+            return new ClientRegistry.Change()
+            {
+                public ClientInfo apply(ClientInfo client)
+                {
+                    return client.withMaxSleepInterval(interval);
+                }
+            };
+        }
+
+        static ClientRegistry.Change adaptiveWarmupChange(
+                final boolean enabled)
+        {
+            return new ClientRegistry.Change()
+            {
+                public ClientInfo apply(ClientInfo client)
+                {
+                    return client.withAdaptiveWarmup(enabled);
+                }
+            };
+        }
+
+        static ClientRegistry.Change quantizedChange(
+                final boolean enabled)
+        {
+            return new ClientRegistry.Change()
+            {
+                public ClientInfo apply(ClientInfo client)
+                {
+                    return client.withQuantized(enabled);
+                }
+            };
+        }
+
+        static ClientRegistry.Change sentinelChange(final long threshold,
+                final long length)
+        {
+            return new ClientRegistry.Change()
+            {
+                public ClientInfo apply(ClientInfo client)
+                {
+                    return client.withSentinel(threshold, length);
+                }
+            };
+        }
+
+        /*
+         * Changes the parameters that are not negative.
+         */
+        static ClientRegistry.Change configChange(final int rate,
+                final long interval, final long warmupLength,
+                final long readLength)
+        {
+            return new ClientRegistry.Change()
+            {
+                public ClientInfo apply(ClientInfo client)
+                {
+                    if (rate >= 0)
+                        client = client.withRate(rate);
+                    if (interval >= 0)
+                        client = client.withSleepInterval(interval);
+                    if (warmupLength >= 0)
+                        client = client.withWarmupInterval(warmupLength);
+                    if (readLength >= 0)
+                        client = client.withReadInterval(readLength);
+
+                    return client;
+                }
+            };
+        }
+
+    }
+
+
+
+
+    /**
+     * Lease of a client that registered a token. Removes the client
+     * when its process dies or when the lease runs out.
+     */
+    class Lease implements IBinder.DeathRecipient
+    {
+        public final String callerName;
+        private final IBinder mToken;
+
+        /** Length of the lease, zero if it never expires */
+        private final long mLength;
+
+        /** Time the lease runs out, in elapsed real time */
+        private volatile long mExpiry;
+
+        Lease(String callerName, IBinder token, long length)
+        {
+            this.callerName = callerName;
+            this.mToken = token;
+            this.mLength = Math.max(length, 0);
+            renew();
+        }
+
+        public void renew()
+        {
+            mExpiry = SystemClock.elapsedRealtime() + mLength;
+        }
+
+        public boolean isExpired(long now)
+        {
+            return (mLength > 0) && (now >= mExpiry);
+        }
+
+        /**
+         * Returns the elapsed real time the lease runs out, or -1 if
+         * it never does.
+         */
+        public long getExpiry()
+        {
+            return (mLength > 0) ? mExpiry : -1;
+        }
+
+        public void unlink()
+        {
+            mToken.unlinkToDeath(this, 0);
+        }
+
+        public void binderDied()
+        {
+            // A client that registered again has a newer lease
+            if (mLeases.get(callerName) != this)
+                return;
+
+            Log.i(TAG, "Client " + callerName + " died. Removing it.");
+            stopClient(callerName);
+        }
     }
 
 
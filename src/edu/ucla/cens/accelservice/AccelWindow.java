@@ -0,0 +1,581 @@
+package edu.ucla.cens.accelservice;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.List;
+import java.util.ArrayList;
+
+
+/**
+ * One reading window of accelerometer samples.
+ *
+ * The axes, the force magnitude and the time-stamps are kept in
+ * contiguous primitive arrays so that the whole window is marshalled
+ * in a single binder transaction without per-element type tags.
+ * Element i of every array belongs to the same sample.
+ *
+ * Sample time-stamps are the SensorEvent.timestamp values in
+ * nanoseconds. They share the clock of the sensor, which is not the
+ * wall clock. Each window carries one pair of reference points in
+ * both clocks so that getWallTime() can convert any sample time.
+ *
+ * The service may keep the values of a window as 16-bit steps
+ * instead of floats, with one step size for the axes and one for the
+ * force, fixed per window, and the time-stamps as 32-bit offsets in
+ * microseconds from the sensor base. The getters then decode the
+ * samples on every call, and the window is parcelled as floats and
+ * nanoseconds, so clients do not see the difference except for the
+ * rounding.
+ *
+ * A window is immutable once it is created. The service publishes
+ * each completed window with a single reference swap, so a reader
+ * always sees all the axes of the same window.
+ */
+public class AccelWindow implements Parcelable
+{
+    /** Monotonically increasing number of the window */
+    private final long mSequence;
+
+    /** Sensor rate constant the window was recorded at */
+    private final int mRate;
+
+    /** Sensor time-stamps of the samples in nanoseconds, or null */
+    private final long[] mTime;
+
+    /** 
+     * Time-stamps of a quantized window in TIME_STEP units after
+     * mSensorBase, or null
+     */
+    private final int[] mTimeSteps;
+
+    /** Wall-clock time in milliseconds at sensor time mSensorBase */
+    private final long mWallBase;
+
+    /** Sensor time-stamp in nanoseconds matching mWallBase */
+    private final long mSensorBase;
+
+    /** Recorded sensor values, null if the window is quantized */
+    private final float[] mX;
+    private final float[] mY;
+    private final float[] mZ;
+
+    /** Force magnitude of each sample in units of g */
+    private final float[] mForce;
+
+    /** 
+     * Values of a quantized window, CHANNELS steps per sample in
+     * the order of the WindowFeatures channels, or null
+     */
+    private final short[] mSteps;
+
+    /** Size of a step of the axes and of the force */
+    private final float mStep;
+    private final float mForceStep;
+
+    private static final int CHANNELS = WindowFeatures.CHANNELS;
+
+    /** Nanoseconds per unit of the time of a quantized window */
+    static final long TIME_STEP = 1000L;
+
+
+    public static final Parcelable.Creator<AccelWindow> CREATOR
+        = new Parcelable.Creator<AccelWindow>()
+    {
+        public AccelWindow createFromParcel(Parcel in)
+        {
+            return new AccelWindow(in);
+        }
+
+        public AccelWindow[] newArray(int size)
+        {
+            return new AccelWindow[size];
+        }
+    };
+
+
+    AccelWindow(long sequence, int rate, long wallBase, long sensorBase,
+            long[] time, float[] x, float[] y, float[] z, float[] force)
+    {
+        mSequence = sequence;
+        mRate = rate;
+        mWallBase = wallBase;
+        mSensorBase = sensorBase;
+        mTime = time;
+        mTimeSteps = null;
+        mX = x;
+        mY = y;
+        mZ = z;
+        mForce = force;
+        mSteps = null;
+        mStep = mForceStep = 0.0f;
+    }
+
+    /**
+     * Creates a quantized window.
+     *
+     * @param   timeSteps   time-stamps in TIME_STEP units after
+     *                      sensorBase
+     * @param   steps       CHANNELS steps per sample
+     * @param   step        size of a step of the axes
+     * @param   forceStep   size of a step of the force
+     */
+    AccelWindow(long sequence, int rate, long wallBase, long sensorBase,
+            int[] timeSteps, short[] steps, float step, float forceStep)
+    {
+        mSequence = sequence;
+        mRate = rate;
+        mWallBase = wallBase;
+        mSensorBase = sensorBase;
+        mTime = null;
+        mTimeSteps = timeSteps;
+        mX = mY = mZ = mForce = null;
+        mSteps = steps;
+        mStep = step;
+        mForceStep = forceStep;
+    }
+
+    private AccelWindow(Parcel in)
+    {
+        mSequence = in.readLong();
+        mRate = in.readInt();
+        mWallBase = in.readLong();
+        mSensorBase = in.readLong();
+        mTime = in.createLongArray();
+        mTimeSteps = null;
+        mX = in.createFloatArray();
+        mY = in.createFloatArray();
+        mZ = in.createFloatArray();
+        mForce = in.createFloatArray();
+        mSteps = null;
+        mStep = mForceStep = 0.0f;
+    }
+
+    public void writeToParcel(Parcel out, int flags)
+    {
+        out.writeLong(mSequence);
+        out.writeInt(mRate);
+        out.writeLong(mWallBase);
+        out.writeLong(mSensorBase);
+
+        if (mSteps == null)
+        {
+            out.writeLongArray(mTime);
+            out.writeFloatArray(mX);
+            out.writeFloatArray(mY);
+            out.writeFloatArray(mZ);
+            out.writeFloatArray(mForce);
+            return;
+        }
+
+        // Same layout as writeLongArray() and writeFloatArray() 
+        // without the decoded arrays
+        int count = size();
+
+        out.writeInt(count);
+        for (int i = 0; i < count; i++)
+            out.writeLong(timeAt(i));
+
+        for (int channel = 0; channel < CHANNELS; channel++)
+        {
+            out.writeInt(count);
+            for (int i = 0; i < count; i++)
+                out.writeFloat(valueAt(channel, i));
+        }
+    }
+
+    public int describeContents()
+    {
+        return 0;
+    }
+
+    /**
+     * Returns the sequence number of the window. Every completed
+     * window gets a number one larger than the previous one.
+     *
+     * @return              sequence number of the window
+     */
+    public long getSequence()
+    {
+        return mSequence;
+    }
+
+    /**
+     * Returns the number of samples in the window.
+     *
+     * @return              number of samples
+     */
+    public int size()
+    {
+        return (mTime != null) ? mTime.length : mTimeSteps.length;
+    }
+
+    /**
+     * Returns the sensor rate the window was recorded at.
+     *
+     * @return              one of the SensorManager.SENSOR_DELAY_*
+     *                      constants
+     */
+    public int getRate()
+    {
+        return mRate;
+    }
+
+    /**
+     * Returns a window with the same sequence number and clock
+     * mapping as this one but with other samples.
+     */
+    AccelWindow withSamples(int rate, long[] time, float[] x, float[] y,
+            float[] z, float[] force)
+    {
+        return new AccelWindow(mSequence, rate, mWallBase, mSensorBase,
+                time, x, y, z, force);
+    }
+
+    /**
+     * Returns the samples taken in the first length nanoseconds of
+     * the window.
+     *
+     * @param   length      length of the part to keep, or zero to 
+     *                      keep the whole window
+     * @return              window with the leading samples
+     */
+    AccelWindow truncate(long length)
+    {
+        int count = size();
+
+        if ((length <= 0) || (count == 0))
+            return this;
+
+        int end = indexAfter(timeAt(0) + length);
+        if (end == count)
+            return this;
+
+        return range(0, end);
+    }
+
+    /**
+     * Returns the samples taken between two wall-clock times.
+     *
+     * @param   startTime   first wall-clock time in milliseconds
+     * @param   endTime     last wall-clock time in milliseconds
+     * @return              window with the samples in the range
+     */
+    AccelWindow slice(long startTime, long endTime)
+    {
+        int count = size();
+        int from = 0, to = count;
+
+        // Only times inside the window are converted, so the 
+        // conversion cannot overflow
+        if ((count > 0) && (startTime > getStartTime()))
+            from = indexAfter(
+                    mSensorBase + (startTime - mWallBase) * 1000000L);
+
+        if ((count > 0) && (endTime < getEndTime()))
+            to = indexAfter(
+                    mSensorBase + (endTime + 1 - mWallBase) * 1000000L);
+
+        if ((from == 0) && (to == count))
+            return this;
+
+        return range(from, Math.max(from, to));
+    }
+
+    /*
+     * Returns the samples from index from up to index to, in the
+     * same form as this window.
+     */
+    private AccelWindow range(int from, int to)
+    {
+        if (mSteps != null)
+            return new AccelWindow(mSequence, mRate, mWallBase,
+                    mSensorBase, copyOfRange(mTimeSteps, from, to),
+                    copyOfRange(mSteps, from * CHANNELS, to * CHANNELS),
+                    mStep, mForceStep);
+
+        return withSamples(mRate, copyOfRange(mTime, from, to),
+                copyOfRange(mX, from, to), copyOfRange(mY, from, to),
+                copyOfRange(mZ, from, to), copyOfRange(mForce, from, to));
+    }
+
+    /**
+     * Returns the sensor time-stamp of a sample in nanoseconds.
+     *
+     * @param   index       index of the sample
+     */
+    long timeAt(int index)
+    {
+        if (mTime != null)
+            return mTime[index];
+
+        return mSensorBase + mTimeSteps[index] * TIME_STEP;
+    }
+
+    /**
+     * Returns one value of a sample.
+     *
+     * @param   channel     WindowFeatures.X, Y, Z or FORCE
+     * @param   index       index of the sample
+     */
+    float valueAt(int channel, int index)
+    {
+        if (mSteps != null)
+            return mSteps[index * CHANNELS + channel] 
+                * ((channel == WindowFeatures.FORCE) ? mForceStep : mStep);
+
+        switch (channel)
+        {
+        case WindowFeatures.X:
+            return mX[index];
+        case WindowFeatures.Y:
+            return mY[index];
+        case WindowFeatures.Z:
+            return mZ[index];
+        default:
+            return mForce[index];
+        }
+    }
+
+    /**
+     * Rounds a value to the nearest of the 16-bit steps of the given
+     * size. Values out of range are clamped.
+     */
+    static short quantize(float value, float step)
+    {
+        int steps = Math.round(value / step);
+
+        return (short) Math.max(-Short.MAX_VALUE, 
+                Math.min(Short.MAX_VALUE, steps));
+    }
+
+    /**
+     * Rounds a sensor time-stamp to the nearest TIME_STEP after the
+     * base. The caller keeps the time within the int range.
+     */
+    static int quantizeTime(long time, long base)
+    {
+        return (int) Math.round((time - base) / (double) TIME_STEP);
+    }
+
+    /*
+     * Returns the index of the first sample taken at or after the
+     * given sensor time, or size() if there is none.
+     */
+    private int indexAfter(long time)
+    {
+        if (mTime != null)
+            return indexAfter(mTime, mTime.length, time);
+
+        return indexAfter(mTimeSteps, mTimeSteps.length, mSensorBase,
+                time);
+    }
+
+    /**
+     * Returns the index of the first of count sorted time-stamps that
+     * is at least time, or count if there is none.
+     */
+    static int indexAfter(long[] times, int count, long time)
+    {
+        int low = 0, high = count;
+
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if (times[mid] < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        return low;
+    }
+
+    /**
+     * Same as indexAfter() for time-stamps in TIME_STEP units after
+     * a base.
+     */
+    static int indexAfter(int[] timeSteps, int count, long base,
+            long time)
+    {
+        int low = 0, high = count;
+
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if (base + timeSteps[mid] * TIME_STEP < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        return low;
+    }
+
+    /**
+     * Returns the wall-clock time in milliseconds at getSensorBase().
+     */
+    long getWallBase()
+    {
+        return mWallBase;
+    }
+
+    /**
+     * Returns the sensor time-stamp in nanoseconds that matches
+     * getWallBase().
+     */
+    long getSensorBase()
+    {
+        return mSensorBase;
+    }
+
+    /**
+     * Converts a sensor time-stamp of this window to wall-clock time.
+     *
+     * @param   sensorTime  sensor time-stamp in nanoseconds
+     * @return              wall-clock time in milliseconds
+     */
+    public long getWallTime(long sensorTime)
+    {
+        return mWallBase + (sensorTime - mSensorBase) / 1000000L;
+    }
+
+    /**
+     * Returns the wall-clock time of the first sample, or -1 if the
+     * window is empty.
+     *
+     * @return              time-stamp in milliseconds
+     */
+    public long getStartTime()
+    {
+        return (size() > 0) ? getWallTime(timeAt(0)) : -1;
+    }
+
+    /**
+     * Returns the wall-clock time of the last sample, or -1 if the
+     * window is empty.
+     *
+     * @return              time-stamp in milliseconds
+     */
+    public long getEndTime()
+    {
+        int count = size();
+
+        return (count > 0) ? getWallTime(timeAt(count - 1)) : -1;
+    }
+
+    /**
+     * The getters below return the internal arrays of the window.
+     * They must not be modified. Time-stamps are sensor times in
+     * nanoseconds. The samples of a quantized window are decoded into
+     * a new array on every call.
+     */
+    public long[] getTimeStamps()
+    {
+        if (mTime != null)
+            return mTime;
+
+        long[] time = new long[mTimeSteps.length];
+
+        for (int i = 0; i < time.length; i++)
+            time[i] = timeAt(i);
+
+        return time;
+    }
+
+    public float[] getX()
+    {
+        return (mSteps != null) ? decode(WindowFeatures.X) : mX;
+    }
+
+    public float[] getY()
+    {
+        return (mSteps != null) ? decode(WindowFeatures.Y) : mY;
+    }
+
+    public float[] getZ()
+    {
+        return (mSteps != null) ? decode(WindowFeatures.Z) : mZ;
+    }
+
+    public float[] getForce()
+    {
+        return (mSteps != null) ? decode(WindowFeatures.FORCE) : mForce;
+    }
+
+    /**
+     * The methods below build the boxed lists returned by the
+     * legacy IAccelService getters.
+     */
+    List<Double> xList()
+    {
+        return toList(WindowFeatures.X);
+    }
+
+    List<Double> yList()
+    {
+        return toList(WindowFeatures.Y);
+    }
+
+    List<Double> zList()
+    {
+        return toList(WindowFeatures.Z);
+    }
+
+    List<Double> forceList()
+    {
+        return toList(WindowFeatures.FORCE);
+    }
+
+    private float[] decode(int channel)
+    {
+        float[] values = new float[size()];
+
+        for (int i = 0; i < values.length; i++)
+            values[i] = valueAt(channel, i);
+
+        return values;
+    }
+
+    private static float[] copyOfRange(float[] values, int from, int to)
+    {
+        float[] copy = new float[to - from];
+        System.arraycopy(values, from, copy, 0, to - from);
+        return copy;
+    }
+
+    private static long[] copyOfRange(long[] values, int from, int to)
+    {
+        long[] copy = new long[to - from];
+        System.arraycopy(values, from, copy, 0, to - from);
+        return copy;
+    }
+
+    private static int[] copyOfRange(int[] values, int from, int to)
+    {
+        int[] copy = new int[to - from];
+        System.arraycopy(values, from, copy, 0, to - from);
+        return copy;
+    }
+
+    private static short[] copyOfRange(short[] values, int from, int to)
+    {
+        short[] copy = new short[to - from];
+        System.arraycopy(values, from, copy, 0, to - from);
+        return copy;
+    }
+
+    private List<Double> toList(int channel)
+    {
+        int count = size();
+        ArrayList<Double> list = new ArrayList<Double>(count);
+
+        for (int i = 0; i < count; i++)
+            list.add((double) valueAt(channel, i));
+
+        return list;
+    }
+
+}
@@ -0,0 +1,158 @@
+package edu.ucla.cens.accelservice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Recognizes the activity of a window from its features.
+ *
+ * A small decision tree looks at the spread of the force magnitude
+ * first, then at how often it peaks and crosses its mean. Walking and
+ * running show one force peak per step, a vehicle shows a small but
+ * fast vibration. The confidence grows with the distance of the
+ * deciding feature from the threshold that decided.
+ *
+ * The results of the last CACHE_SIZE windows are kept by sequence
+ * number, oldest window first out. Windows are classified on
+ * the sensor thread and read on binder threads, so the cache is
+ * synchronized.
+ */
+class ActivityClassifier
+{
+    /** Number of window results kept */
+    static final int CACHE_SIZE = 32;
+
+    /** Windows with fewer samples are not classified */
+    private static final int MIN_SAMPLES = 8;
+
+    /** Deviation of the force below which the device is still, g */
+    private static final double STILL_DEVIATION = 0.02;
+
+    /** Deviation of the force above which the user moves, g */
+    private static final double MOVING_DEVIATION = 0.1;
+
+    /** Deviation of the force above which the user runs, g */
+    private static final double RUN_DEVIATION = 0.6;
+
+    /** Force mean crossings per second of a vehicle vibration */
+    private static final double VEHICLE_CROSSINGS = 8.0;
+
+    /** Range of step rates in steps per second */
+    private static final double MIN_STEP_RATE = 0.6;
+    private static final double RUN_STEP_RATE = 2.3;
+
+    private final Map<Long, ActivityResult> mCache
+        = new LinkedHashMap<Long, ActivityResult>(CACHE_SIZE, 0.75f,
+                false)
+    {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Long, ActivityResult> eldest)
+        {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private volatile ActivityResult mLatest;
+
+
+    /**
+     * Classifies a finished window and caches the result.
+     *
+     * @param   features    features of the window
+     * @param   seconds     length of the window in seconds
+     * @return              the result
+     */
+    public ActivityResult classify(WindowFeatures features,
+            double seconds)
+    {
+        ActivityResult result = new ActivityResult(
+                features.getSequence(), ActivityResult.UNKNOWN, 0.0f);
+
+        if ((features.getCount() >= MIN_SAMPLES) && (seconds > 0.0))
+            result = decide(features, seconds);
+
+        synchronized (mCache)
+        {
+            mCache.put(result.getSequence(), result);
+        }
+        mLatest = result;
+
+        return result;
+    }
+
+    /**
+     * Returns the cached result of a window.
+     *
+     * @param   sequence    sequence number of the window
+     * @return              the result, or null if the window is not
+     *                      cached
+     */
+    public ActivityResult get(long sequence)
+    {
+        synchronized (mCache)
+        {
+            return mCache.get(sequence);
+        }
+    }
+
+    /**
+     * Returns the result of the latest classified window, or null.
+     */
+    public ActivityResult getLatest()
+    {
+        return mLatest;
+    }
+
+    private static ActivityResult decide(WindowFeatures features,
+            double seconds)
+    {
+        long sequence = features.getSequence();
+        int force = WindowFeatures.FORCE;
+
+        double deviation = Math.sqrt(features.getVariance(force));
+        double crossings = features.getZeroCrossingRate(force);
+        double steps = features.getPeakCount(force) / seconds;
+
+        if (deviation < STILL_DEVIATION)
+            return new ActivityResult(sequence, ActivityResult.STILL,
+                    confidence(deviation, STILL_DEVIATION));
+
+        if (deviation < MOVING_DEVIATION)
+        {
+            if (crossings >= VEHICLE_CROSSINGS)
+                return new ActivityResult(sequence,
+                        ActivityResult.VEHICLE,
+                        confidence(crossings, VEHICLE_CROSSINGS));
+
+            return new ActivityResult(sequence, ActivityResult.STILL,
+                    confidence(deviation, MOVING_DEVIATION));
+        }
+
+        if ((deviation >= RUN_DEVIATION) || (steps >= RUN_STEP_RATE))
+            return new ActivityResult(sequence, ActivityResult.RUN,
+                    Math.max(confidence(deviation, RUN_DEVIATION),
+                        confidence(steps, RUN_STEP_RATE)));
+
+        if (steps >= MIN_STEP_RATE)
+            return new ActivityResult(sequence, ActivityResult.WALK,
+                    Math.min(confidence(steps, MIN_STEP_RATE),
+                        confidence(steps, RUN_STEP_RATE)));
+
+        return new ActivityResult(sequence, ActivityResult.UNKNOWN,
+                confidence(steps, MIN_STEP_RATE));
+    }
+
+    /*
+     * Maps the distance from a threshold to a confidence between 0.5
+     * at the threshold and 1 at twice or zero times the threshold.
+     */
+    private static float confidence(double value, double threshold)
+    {
+        double margin = Math.abs(value - threshold) / threshold;
+
+        return (float) (0.5 + 0.5 * Math.min(1.0, margin));
+    }
+
+}
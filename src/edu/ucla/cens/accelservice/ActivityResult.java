@@ -0,0 +1,113 @@
+package edu.ucla.cens.accelservice;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+
+/**
+ * Activity the service recognized in one reading window.
+ *
+ * A result is immutable once it is created.
+ */
+public class ActivityResult implements Parcelable
+{
+    /** Activity labels */
+    public static final int UNKNOWN = 0;
+    public static final int STILL = 1;
+    public static final int WALK = 2;
+    public static final int RUN = 3;
+    public static final int VEHICLE = 4;
+
+    private static final String[] NAMES = {
+        "unknown", "still", "walk", "run", "vehicle"
+    };
+
+    /** Sequence number of the window that was classified */
+    private final long mSequence;
+
+    private final int mLabel;
+
+    /** Confidence of the label between 0 and 1 */
+    private final float mConfidence;
+
+
+    public static final Parcelable.Creator<ActivityResult> CREATOR
+        = new Parcelable.Creator<ActivityResult>()
+    {
+        public ActivityResult createFromParcel(Parcel in)
+        {
+            return new ActivityResult(in);
+        }
+
+        public ActivityResult[] newArray(int size)
+        {
+            return new ActivityResult[size];
+        }
+    };
+
+
+    ActivityResult(long sequence, int label, float confidence)
+    {
+        mSequence = sequence;
+        mLabel = label;
+        mConfidence = confidence;
+    }
+
+    private ActivityResult(Parcel in)
+    {
+        mSequence = in.readLong();
+        mLabel = in.readInt();
+        mConfidence = in.readFloat();
+    }
+
+    public void writeToParcel(Parcel out, int flags)
+    {
+        out.writeLong(mSequence);
+        out.writeInt(mLabel);
+        out.writeFloat(mConfidence);
+    }
+
+    public int describeContents()
+    {
+        return 0;
+    }
+
+    /**
+     * Returns the sequence number of the window that was classified.
+     */
+    public long getSequence()
+    {
+        return mSequence;
+    }
+
+    /**
+     * Returns UNKNOWN, STILL, WALK, RUN or VEHICLE.
+     */
+    public int getLabel()
+    {
+        return mLabel;
+    }
+
+    /**
+     * Returns the name of the label, like "walk".
+     */
+    public String getLabelName()
+    {
+        return NAMES[mLabel];
+    }
+
+    /**
+     * Returns the confidence of the label, between 0 and 1.
+     */
+    public float getConfidence()
+    {
+        return mConfidence;
+    }
+
+    @Override
+    public String toString()
+    {
+        return getLabelName() + " (" + mConfidence + ")";
+    }
+
+}
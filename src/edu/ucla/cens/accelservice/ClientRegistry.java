@@ -0,0 +1,656 @@
+package edu.ucla.cens.accelservice;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Keeps the settings of every client, and the service settings that
+ * follow from them.
+ *
+ * The entries are immutable ClientInfo objects. A change builds a new
+ * entry and swaps it in with compare-and-swap, so binder threads never
+ * lock and never see a partly updated client.
+ *
+ * Every client also has an integer handle. The handle indexes a dense
+ * table of the clients, so calls that pass a handle find the client
+ * without hashing its name. The low bits of a handle are the index in
+ * the table and the high bits count how often that index was reused,
+ * so the handle of a client that left is never mistaken for that of a
+ * newer client. Only adding and removing a client takes a lock.
+ *
+ * The fastest rate and the longest warm-up and reading lengths are
+ * kept in an immutable Aggregate that counts how many clients use each
+ * value. Every change swaps in a new Aggregate that differs only by
+ * the old and the new value of the changed client. A change does not
+ * scan the clients, but it copies the counts of each setting it
+ * changes, so it costs O(distinct values) of that setting, not O(1).
+ * The counts of two racing changes may be applied in either order: a
+ * count may be negative for a moment, and only values with a positive
+ * count are reported. The Aggregate also holds the service settings
+ * that follow from the counts, so the service reads all of them from
+ * one snapshot without a lock.
+ */
+class ClientRegistry
+{
+    /** Number of handle bits that index the table */
+    private static final int INDEX_BITS = 16;
+    private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+    private static final int MAX_GENERATION = 0x7fff;
+
+    private static final int INITIAL_TABLE_SIZE = 16;
+
+    private final ConcurrentHashMap<String, Slot> mClients
+        = new ConcurrentHashMap<String, Slot>();
+
+    private final AtomicReference<Aggregate> mAggregate
+        = new AtomicReference<Aggregate>(new Aggregate());
+
+    /** Clients by table index. Replaced as a whole when it grows. */
+    private volatile Slot[] mTable = new Slot[INITIAL_TABLE_SIZE];
+
+    /** Times each index was used, guarded by mTableLock */
+    private int[] mGenerations = new int[INITIAL_TABLE_SIZE];
+
+    /** Indices of the removed clients, guarded by mTableLock */
+    private int[] mFree = new int[INITIAL_TABLE_SIZE];
+    private int mFreeCount = 0;
+
+    /** Number of table indices ever used, guarded by mTableLock */
+    private int mUsed = 0;
+
+    private final Object mTableLock = new Object();
+
+
+    /**
+     * Changes the settings of a client.
+     */
+    interface Change
+    {
+        /**
+         * @param   client      current settings of the client
+         * @return              the new settings
+         */
+        AccelService.ClientInfo apply(AccelService.ClientInfo client);
+    }
+
+
+    /**
+     * Returns the settings of a client, or null if it is unknown.
+     *
+     * @param   callerName      String identifying the client
+     */
+    public AccelService.ClientInfo get(String callerName)
+    {
+        Slot slot = mClients.get(callerName);
+
+        return (slot != null) ? slot.info.get() : null;
+    }
+
+    /**
+     * Returns the settings of a client, or null if the handle is not
+     * valid.
+     *
+     * @param   handle          handle returned by register()
+     */
+    public AccelService.ClientInfo get(int handle)
+    {
+        Slot slot = slotOf(handle);
+
+        return (slot != null) ? slot.info.get() : null;
+    }
+
+    /**
+     * Returns the name of a client, or null if the handle is not
+     * valid.
+     *
+     * @param   handle          handle returned by register()
+     */
+    public String nameOf(int handle)
+    {
+        Slot slot = slotOf(handle);
+
+        return (slot != null) ? slot.name : null;
+    }
+
+    public boolean contains(String callerName)
+    {
+        return mClients.containsKey(callerName);
+    }
+
+    public int size()
+    {
+        return mClients.size();
+    }
+
+    /**
+     * Adds a client with the given settings unless it is already
+     * known.
+     *
+     * @param   callerName      String identifying the client
+     * @param   client          settings of a new client
+     * @return                  true if the client was added
+     */
+    public boolean add(String callerName, AccelService.ClientInfo client)
+    {
+        synchronized (mTableLock)
+        {
+            if (mClients.containsKey(callerName))
+                return false;
+
+            return newSlot(callerName, client) != null;
+        }
+    }
+
+    /**
+     * Returns the handle of a client, adding the client with the
+     * given settings if it is unknown.
+     *
+     * @param   callerName      String identifying the client
+     * @param   client          settings of a new client
+     * @return                  handle of the client, or -1 if the
+     *                          table is full
+     */
+    public int register(String callerName, AccelService.ClientInfo client)
+    {
+        Slot slot = slotFor(callerName, client);
+
+        return (slot != null) ? slot.handle : -1;
+    }
+
+    /**
+     * Applies a change to the settings of a client. An unknown
+     * client is added with the given settings before the change.
+     *
+     * @param   callerName      String identifying the client
+     * @param   initial         settings of a new client
+     * @param   change          the change to apply
+     * @return                  the new settings of the client, or 
+     *                          null if the table is full
+     */
+    public AccelService.ClientInfo update(String callerName,
+            AccelService.ClientInfo initial, Change change)
+    {
+        while (true)
+        {
+            Slot slot = slotFor(callerName, initial);
+
+            if (slot == null)
+                return null;
+
+            AccelService.ClientInfo client = slot.update(change);
+
+            // Retry with a new entry if the client was removed
+            if (client != null)
+                return client;
+        }
+    }
+
+    /**
+     * Applies a change to the settings of a client.
+     *
+     * @param   handle          handle returned by register()
+     * @param   change          the change to apply
+     * @return                  the new settings of the client, or 
+     *                          null if the handle is not valid
+     */
+    public AccelService.ClientInfo update(int handle, Change change)
+    {
+        Slot slot = slotOf(handle);
+
+        return (slot != null) ? slot.update(change) : null;
+    }
+
+    /**
+     * Removes a client. Its handle is no longer valid.
+     *
+     * @param   callerName      String identifying the client
+     * @return                  the settings of the removed client,
+     *                          or null if it was unknown
+     */
+    public AccelService.ClientInfo remove(String callerName)
+    {
+        AccelService.ClientInfo old;
+
+        synchronized (mTableLock)
+        {
+            Slot slot = mClients.remove(callerName);
+
+            if (slot == null)
+                return null;
+
+            int index = slot.handle & INDEX_MASK;
+            mTable[index] = null;
+            mFree[mFreeCount++] = index;
+
+            old = slot.info.getAndSet(null);
+        }
+
+        if (old != null)
+            count(old, null);
+
+        return old;
+    }
+
+    /**
+     * Returns the counts of the settings of all clients. The service
+     * derives all its settings from one Aggregate, so they agree.
+     */
+    public Aggregate aggregate()
+    {
+        return mAggregate.get();
+    }
+
+
+    /*
+     * Returns the entry of a handle, or null if it is not valid.
+     */
+    private Slot slotOf(int handle)
+    {
+        Slot[] table = mTable;
+        int index = handle & INDEX_MASK;
+
+        if ((handle < 0) || (index >= table.length))
+            return null;
+
+        Slot slot = table[index];
+
+        return ((slot != null) && (slot.handle == handle)) ? slot : null;
+    }
+
+    /*
+     * Returns the entry of a client, adding it if it is unknown.
+     */
+    private Slot slotFor(String callerName, AccelService.ClientInfo client)
+    {
+        Slot slot = mClients.get(callerName);
+
+        if (slot != null)
+            return slot;
+
+        synchronized (mTableLock)
+        {
+            slot = mClients.get(callerName);
+            if (slot == null)
+                slot = newSlot(callerName, client);
+        }
+
+        return slot;
+    }
+
+    /*
+     * Adds a client to the table. Called with mTableLock held.
+     */
+    private Slot newSlot(String callerName, AccelService.ClientInfo client)
+    {
+        int index;
+
+        if (mFreeCount > 0)
+        {
+            index = mFree[--mFreeCount];
+        }
+        else
+        {
+            if (mUsed > INDEX_MASK)
+                return null;
+
+            index = mUsed++;
+
+            if (index == mTable.length)
+            {
+                Slot[] table = new Slot[index * 2];
+                System.arraycopy(mTable, 0, table, 0, index);
+                mTable = table;
+
+                int[] generations = new int[index * 2];
+                System.arraycopy(mGenerations, 0, generations, 0, index);
+                mGenerations = generations;
+
+                int[] free = new int[index * 2];
+                System.arraycopy(mFree, 0, free, 0, mFreeCount);
+                mFree = free;
+            }
+        }
+
+        // Generations start at one so that no handle is zero
+        int generation = mGenerations[index] % MAX_GENERATION + 1;
+        mGenerations[index] = generation;
+
+        Slot slot = new Slot(callerName, 
+                (generation << INDEX_BITS) | index, client);
+
+        mClients.put(callerName, slot);
+        mTable[index] = slot;
+
+        count(null, client);
+
+        return slot;
+    }
+
+    /*
+     * Moves the counts of a client from its old to its new settings.
+     */
+    private void count(AccelService.ClientInfo old,
+            AccelService.ClientInfo client)
+    {
+        Aggregate cur, next;
+
+        do
+        {
+            cur = mAggregate.get();
+            next = cur.change(old, client);
+        }
+        while (!mAggregate.compareAndSet(cur, next));
+    }
+
+
+    /**
+     * Entry of one client in the table.
+     */
+    class Slot
+    {
+        public final String name;
+        public final int handle;
+
+        /** Settings of the client, null once it is removed */
+        public final AtomicReference<AccelService.ClientInfo> info;
+
+        Slot(String name, int handle, AccelService.ClientInfo client)
+        {
+            this.name = name;
+            this.handle = handle;
+            this.info = new AtomicReference<AccelService.ClientInfo>(
+                    client);
+        }
+
+        /*
+         * Applies a change, or returns null if the client was
+         * removed.
+         */
+        AccelService.ClientInfo update(Change change)
+        {
+            while (true)
+            {
+                AccelService.ClientInfo old = info.get();
+
+                if (old == null)
+                    return null;
+
+                AccelService.ClientInfo client = change.apply(old);
+                if (info.compareAndSet(old, client))
+                {
+                    count(old, client);
+                    return client;
+                }
+            }
+        }
+    }
+
+    /**
+     * Immutable counts of the settings of all clients.
+     */
+    static class Aggregate
+    {
+        /** Kinds of settings that are counted */
+        static final int RATE = 0;
+        static final int WARMUP = 1;
+        static final int READ = 2;
+        static final int WARMUP_MODE = 3;
+        static final int SENTINEL_THRESHOLD = 4;
+        static final int CAPTURE_LENGTH = 5;
+        static final int SAMPLE_MODE = 6;
+        private static final int KINDS = 7;
+
+        private final Counts[] mCounts;
+
+        /** Number of changes made since the registry was created */
+        final long version;
+
+        /** Settings of the service, derived from the counts */
+        final int rate;
+        final long warmupInterval;
+        final boolean adaptiveWarmup;
+        final long readInterval;
+        final boolean quantized;
+        final long sentinelThreshold;
+        final long captureLength;
+
+        /*
+         * Makes the Aggregate of a new registry, which has the default
+         * settings of the service until the first client is counted.
+         */
+        Aggregate()
+        {
+            mCounts = new Counts[KINDS];
+            for (int k = 0; k < KINDS; k++)
+                mCounts[k] = new Counts();
+
+            version = 0;
+            rate = AccelService.DEFAULT_RATE;
+            warmupInterval = AccelService.DEFAULT_WARMUP_INTERVAL;
+            adaptiveWarmup = false;
+            readInterval = AccelService.DEFAULT_READ_INTERVAL;
+            quantized = false;
+            sentinelThreshold = 0;
+            captureLength = AccelService.DEFAULT_READ_INTERVAL;
+        }
+
+        private Aggregate(Counts[] counts, long version)
+        {
+            mCounts = counts;
+
+            this.version = version;
+            rate = minRate(Integer.MAX_VALUE);
+            warmupInterval = maxWarmupInterval(-1);
+            adaptiveWarmup = allAdaptiveWarmup();
+            readInterval = maxReadInterval(-1);
+            quantized = allQuantized();
+            sentinelThreshold = minSentinelThreshold(0);
+            captureLength = maxCaptureLength(
+                    AccelService.DEFAULT_READ_INTERVAL);
+        }
+
+        Counts get(int kind)
+        {
+            return mCounts[kind];
+        }
+
+        /**
+         * Returns the fastest rate of all clients, or def if there are
+         * no clients.
+         */
+        int minRate(int def)
+        {
+            return (int) mCounts[RATE].min(def);
+        }
+
+        /**
+         * Returns the longest warm-up length of all clients, or def if
+         * there are no clients.
+         */
+        long maxWarmupInterval(long def)
+        {
+            return mCounts[WARMUP].max(def);
+        }
+
+        /**
+         * Returns the longest reading length of all clients, or def if
+         * there are no clients.
+         */
+        long maxReadInterval(long def)
+        {
+            return mCounts[READ].max(def);
+        }
+
+        /**
+         * Returns true if there are clients and all of them asked for
+         * the adaptive warm-up.
+         */
+        boolean allAdaptiveWarmup()
+        {
+            return mCounts[WARMUP_MODE].min(0) == 1;
+        }
+
+        /**
+         * Returns true if there are clients and all of them accept
+         * quantized samples.
+         */
+        boolean allQuantized()
+        {
+            return mCounts[SAMPLE_MODE].min(0) == 1;
+        }
+
+        /**
+         * Returns the lowest sentinel threshold of the clients that use
+         * the sentinel, or def if none does.
+         */
+        long minSentinelThreshold(long def)
+        {
+            return mCounts[SENTINEL_THRESHOLD].min(def);
+        }
+
+        /**
+         * Returns the longest capture length of the clients that use the
+         * sentinel, or def if none does.
+         */
+        long maxCaptureLength(long def)
+        {
+            return mCounts[CAPTURE_LENGTH].max(def);
+        }
+
+        Aggregate change(AccelService.ClientInfo old,
+                AccelService.ClientInfo client)
+        {
+            Counts[] counts = new Counts[KINDS];
+
+            for (int k = 0; k < KINDS; k++)
+            {
+                boolean hasOld = isCounted(old, k);
+                boolean hasNew = isCounted(client, k);
+
+                counts[k] = mCounts[k].change(
+                        hasOld, hasOld ? valueOf(old, k) : 0,
+                        hasNew, hasNew ? valueOf(client, k) : 0);
+            }
+
+            return new Aggregate(counts, version + 1);
+        }
+
+        /*
+         * Only the clients that use the sentinel count for its 
+         * settings.
+         */
+        private static boolean isCounted(AccelService.ClientInfo client,
+                int kind)
+        {
+            if (client == null)
+                return false;
+
+            if ((kind == SENTINEL_THRESHOLD) || (kind == CAPTURE_LENGTH))
+                return client.sentinelThreshold > 0;
+
+            return true;
+        }
+
+        private static long valueOf(AccelService.ClientInfo client,
+                int kind)
+        {
+            switch (kind)
+            {
+            case RATE:
+                return client.rate;
+            case WARMUP:
+                return client.warmupInterval;
+            case READ:
+                return client.readInterval;
+            case WARMUP_MODE:
+                return client.adaptiveWarmup ? 1 : 0;
+            case SENTINEL_THRESHOLD:
+                return client.sentinelThreshold;
+            case SAMPLE_MODE:
+                return client.quantized ? 1 : 0;
+            case CAPTURE_LENGTH:
+            default:
+                return client.captureLength;
+            }
+        }
+    }
+
+
+    /**
+     * Immutable multiset of values. Only the distinct values are
+     * stored, so a change copies as many entries as there are
+     * distinct values in use.
+     */
+    static class Counts
+    {
+        private final TreeMap<Long, Integer> mCounts;
+
+        Counts()
+        {
+            mCounts = new TreeMap<Long, Integer>();
+        }
+
+        private Counts(TreeMap<Long, Integer> counts)
+        {
+            mCounts = counts;
+        }
+
+        Counts change(boolean hasOld, long old, boolean hasNew,
+                long value)
+        {
+            if (hasOld && hasNew && (old == value))
+                return this;
+
+            TreeMap<Long, Integer> counts
+                = new TreeMap<Long, Integer>(mCounts);
+
+            if (hasOld)
+                add(counts, old, -1);
+            if (hasNew)
+                add(counts, value, 1);
+
+            return new Counts(counts);
+        }
+
+        long min(long def)
+        {
+            for (Map.Entry<Long, Integer> entry : mCounts.entrySet())
+                if (entry.getValue() > 0)
+                    return entry.getKey();
+
+            return def;
+        }
+
+        long max(long def)
+        {
+            SortedMap<Long, Integer> counts = mCounts;
+
+            while (!counts.isEmpty())
+            {
+                Long value = counts.lastKey();
+                if (counts.get(value) > 0)
+                    return value;
+                counts = counts.headMap(value);
+            }
+
+            return def;
+        }
+
+        private static void add(TreeMap<Long, Integer> counts,
+                long value, int delta)
+        {
+            Integer count = counts.get(value);
+            int n = ((count != null) ? count : 0) + delta;
+
+            if (n == 0)
+                counts.remove(value);
+            else
+                counts.put(value, n);
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+package edu.ucla.cens.accelservice;
+
+
+/**
+ * Reduces a stream of samples to a lower rate.
+ *
+ * Samples are grouped in consecutive bins of one output period each
+ * and every bin is replaced by the average of its samples. The
+ * average is a boxcar low-pass filter whose first null is at the
+ * output rate, so the energy above the new Nyquist frequency is
+ * attenuated before the samples are dropped.
+ *
+ * The state of a partial bin is carried from one call to the next,
+ * so a window can be decimated in several batches.
+ */
+class Decimator
+{
+    /** Output rate constant and its period in nanoseconds */
+    private final int mRate;
+    private final long mPeriod;
+
+    /** Sensor time at which the current bin ends */
+    private long mBinEnd;
+
+    /** Sums of the samples in the current bin */
+    private int mCount;
+    private long mTimeSum;
+    private double mSumX;
+    private double mSumY;
+    private double mSumZ;
+    private double mSumForce;
+
+    /** Output of the current call */
+    private long[] mOutTime;
+    private float[] mOutX;
+    private float[] mOutY;
+    private float[] mOutZ;
+    private float[] mOutForce;
+    private int mOut;
+
+
+    /**
+     * @param   rate        sensor rate constant of the output
+     */
+    Decimator(int rate)
+    {
+        mRate = rate;
+        mPeriod = AccelService.ratePeriod(rate) * 1000000L;
+        reset();
+    }
+
+    public int getRate()
+    {
+        return mRate;
+    }
+
+    /**
+     * Returns the window at the given rate. The window is returned
+     * unchanged if it is not faster than that rate.
+     *
+     * @param   window      a complete window
+     * @param   rate        sensor rate constant asked for
+     * @return              the window decimated to rate
+     */
+    static AccelWindow toRate(AccelWindow window, int rate)
+    {
+        if (!isSlower(rate, window.getRate()))
+            return window;
+
+        return new Decimator(rate).decimate(window, true);
+    }
+
+    /**
+     * Returns true if rate is slower than the given recording rate.
+     */
+    static boolean isSlower(int rate, int recordRate)
+    {
+        return AccelService.ratePeriod(rate) 
+            > AccelService.ratePeriod(recordRate);
+    }
+
+    /**
+     * Drops any partial bin.
+     */
+    public void reset()
+    {
+        mCount = 0;
+        mTimeSum = 0;
+        mSumX = mSumY = mSumZ = mSumForce = 0.0;
+    }
+
+    /**
+     * Decimates the samples of the given window.
+     *
+     * @param   in          consecutive samples of one window
+     * @param   last        true if no more samples of the window
+     *                      follow, which emits the partial bin
+     * @return              window with the decimated samples
+     */
+    public AccelWindow decimate(AccelWindow in, boolean last)
+    {
+        long[] time = in.getTimeStamps();
+        float[] x = in.getX();
+        float[] y = in.getY();
+        float[] z = in.getZ();
+        float[] force = in.getForce();
+        int size = time.length;
+
+        // Every bin holds at least one sample, and a bin is at least
+        // one period long. One more bin may be left from the last call.
+        int maxOut = size + 1;
+        if (size > 0)
+            maxOut = (int) Math.min(maxOut,
+                    (time[size - 1] - time[0]) / mPeriod + 2);
+
+        mOutTime = new long[maxOut];
+        mOutX = new float[maxOut];
+        mOutY = new float[maxOut];
+        mOutZ = new float[maxOut];
+        mOutForce = new float[maxOut];
+        mOut = 0;
+
+        for (int i = 0; i < size; i++)
+        {
+            if (mCount == 0)
+                mBinEnd = time[i] + mPeriod;
+            else if (time[i] >= mBinEnd)
+            {
+                emit();
+                mBinEnd = time[i] + mPeriod;
+            }
+
+            mCount++;
+            mTimeSum += time[i] - (mBinEnd - mPeriod);
+            mSumX += x[i];
+            mSumY += y[i];
+            mSumZ += z[i];
+            mSumForce += force[i];
+        }
+
+        if (last && (mCount > 0))
+            emit();
+
+        AccelWindow out = in.withSamples(mRate, trim(mOutTime), 
+                trim(mOutX), trim(mOutY), trim(mOutZ), trim(mOutForce));
+
+        mOutTime = null;
+        mOutX = mOutY = mOutZ = mOutForce = null;
+
+        return out;
+    }
+
+    /*
+     * Appends the average of the current bin to the output.
+     */
+    private void emit()
+    {
+        mOutTime[mOut] = (mBinEnd - mPeriod) + mTimeSum / mCount;
+        mOutX[mOut] = (float) (mSumX / mCount);
+        mOutY[mOut] = (float) (mSumY / mCount);
+        mOutZ[mOut] = (float) (mSumZ / mCount);
+        mOutForce[mOut] = (float) (mSumForce / mCount);
+        mOut++;
+
+        reset();
+    }
+
+    private float[] trim(float[] values)
+    {
+        if (values.length == mOut)
+            return values;
+
+        float[] copy = new float[mOut];
+        System.arraycopy(values, 0, copy, 0, mOut);
+        return copy;
+    }
+
+    private long[] trim(long[] values)
+    {
+        if (values.length == mOut)
+            return values;
+
+        long[] copy = new long[mOut];
+        System.arraycopy(values, 0, copy, 0, mOut);
+        return copy;
+    }
+
+}
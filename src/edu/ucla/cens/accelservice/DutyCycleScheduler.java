@@ -0,0 +1,247 @@
+package edu.ucla.cens.accelservice;
+
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+
+/**
+ * Keeps the sampling schedule of every client.
+ *
+ * Each client has its own sleep interval and the time its next
+ * reading is due. The schedules are kept in a priority queue ordered
+ * by due time, so the service only wakes up when at least one client
+ * is due. Clients that become due within a short tolerance of each
+ * other are served by the same sensor session.
+ *
+ * A client may also allow its interval to be backed off while the
+ * device does not move. At backoff level n its readings are 2^n times
+ * its interval apart, up to its own ceiling.
+ *
+ * All times are SystemClock.elapsedRealtime() values in milliseconds.
+ */
+class DutyCycleScheduler
+{
+    /** Longest time a reading is moved ahead to merge sessions */
+    private static final long MAX_MERGE_TOLERANCE = 5000;
+
+    /** Part of the interval a reading may be moved ahead */
+    private static final int MERGE_TOLERANCE_DIVISOR = 4;
+
+    private final PriorityQueue<Schedule> mQueue
+        = new PriorityQueue<Schedule>();
+
+    private final HashMap<String, Schedule> mSchedules
+        = new HashMap<String, Schedule>();
+
+    /** Current backoff level */
+    private int mLevel = 0;
+
+
+    /**
+     * Sets the sleep interval of a client. A new client is due
+     * right away. A client that changes its interval is next due
+     * one new interval after its last reading.
+     *
+     * @param   callerName      String identifying the client
+     * @param   interval        sleep interval in milliseconds
+     * @param   maxInterval     longest interval the backoff may 
+     *                          reach, or zero for no backoff
+     * @param   now             current time
+     */
+    public synchronized void setInterval(String callerName,
+            long interval, long maxInterval, long now)
+    {
+        Schedule schedule = mSchedules.get(callerName);
+
+        if (schedule == null)
+        {
+            schedule = new Schedule(callerName, interval, now);
+            schedule.maxInterval = maxInterval;
+            mSchedules.put(callerName, schedule);
+            mQueue.add(schedule);
+        }
+        else if ((schedule.interval != interval)
+                || (schedule.maxInterval != maxInterval))
+        {
+            mQueue.remove(schedule);
+            schedule.interval = interval;
+            schedule.maxInterval = maxInterval;
+            schedule.nextDue = (schedule.lastRun >= 0)
+                ? schedule.lastRun + schedule.effectiveInterval(mLevel)
+                : now;
+            mQueue.add(schedule);
+        }
+    }
+
+    /**
+     * Sets the backoff level. A higher level takes effect when each
+     * client is next served. Going back to a lower level brings the
+     * next reading of the backed off clients forward right away.
+     *
+     * @param   level           the new backoff level
+     * @param   now             current time
+     * @return                  true if a client became due earlier
+     */
+    public synchronized boolean setBackoff(int level, long now)
+    {
+        if (level == mLevel)
+            return false;
+
+        boolean lower = (level < mLevel);
+        boolean changed = false;
+        mLevel = level;
+
+        if (!lower)
+            return false;
+
+        for (Schedule schedule : mSchedules.values())
+        {
+            long due = (schedule.lastRun >= 0)
+                ? schedule.lastRun + schedule.effectiveInterval(level)
+                : now;
+
+            if (due < schedule.nextDue)
+            {
+                mQueue.remove(schedule);
+                schedule.nextDue = due;
+                mQueue.add(schedule);
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Removes the schedule of a client.
+     *
+     * @param   callerName      String identifying the client
+     */
+    public synchronized void remove(String callerName)
+    {
+        Schedule schedule = mSchedules.remove(callerName);
+
+        if (schedule != null)
+            mQueue.remove(schedule);
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return mQueue.isEmpty();
+    }
+
+    /**
+     * Returns the time the next client is due, or -1 if there are
+     * no clients.
+     */
+    public synchronized long nextWakeup()
+    {
+        Schedule head = mQueue.peek();
+
+        return (head != null) ? head.nextDue : -1;
+    }
+
+    /**
+     * Returns the shortest sleep interval of all clients, or -1 if
+     * there are no clients.
+     */
+    public synchronized long minInterval()
+    {
+        long min = -1;
+
+        for (Schedule schedule : mSchedules.values())
+            if ((min < 0) || (schedule.interval < min))
+                min = schedule.interval;
+
+        return min;
+    }
+
+    /**
+     * Takes all the clients that are due now, or will be due within
+     * their merge tolerance, and schedules their next reading.
+     *
+     * @param   now             current time
+     * @return                  number of clients served by the
+     *                          session that starts now
+     */
+    public synchronized int collectDue(long now)
+    {
+        int count = 0;
+        Schedule head;
+
+        // Schedules that are served go back after the loop
+        Schedule served = null;
+
+        while (((head = mQueue.peek()) != null)
+                && (head.nextDue <= now + head.tolerance()))
+        {
+            mQueue.poll();
+
+            head.lastRun = now;
+            head.nextDue = now + head.effectiveInterval(mLevel);
+            head.next = served;
+            served = head;
+
+            count++;
+        }
+
+        while (served != null)
+        {
+            Schedule next = served.next;
+            served.next = null;
+            mQueue.add(served);
+            served = next;
+        }
+
+        return count;
+    }
+
+
+    static class Schedule implements Comparable<Schedule>
+    {
+        public final String callerName;
+        public long interval;
+        public long maxInterval;
+        public long nextDue;
+        public long lastRun;
+
+        /** Link used while collecting due schedules */
+        Schedule next;
+
+        Schedule(String callerName, long interval, long now)
+        {
+            this.callerName = callerName;
+            this.interval = interval;
+            this.maxInterval = 0;
+            this.nextDue = now;
+            this.lastRun = -1;
+        }
+
+        /*
+         * Returns the interval at the given backoff level.
+         */
+        long effectiveInterval(int level)
+        {
+            if (maxInterval <= interval)
+                return interval;
+
+            return Math.min(maxInterval, interval << level);
+        }
+
+        long tolerance()
+        {
+            return Math.min(MAX_MERGE_TOLERANCE,
+                    interval / MERGE_TOLERANCE_DIVISOR);
+        }
+
+        public int compareTo(Schedule other)
+        {
+            if (nextDue < other.nextDue)
+                return -1;
+            else if (nextDue > other.nextDue)
+                return 1;
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package edu.ucla.cens.accelservice;
+
+
+/**
+ * Computes the features of a window while its samples arrive.
+ *
+ * Mean and variance are kept with Welford's update, which is stable
+ * in a single pass. The other features are updated from the new
+ * sample and the previous two, so the buffer is never read again.
+ * All state sits in preallocated arrays and adding a sample does not
+ * allocate.
+ */
+class FeatureAccumulator
+{
+    private static final int CHANNELS = WindowFeatures.CHANNELS;
+
+    private int mCount;
+    private long mFirstTime;
+    private long mLastTime;
+
+    private final double[] mMean = new double[CHANNELS];
+    private final double[] mM2 = new double[CHANNELS];
+    private final double[] mEnergy = new double[CHANNELS];
+    private final float[] mMin = new float[CHANNELS];
+    private final float[] mMax = new float[CHANNELS];
+
+    /** Side of the running mean the last sample was on */
+    private final int[] mSide = new int[CHANNELS];
+    private final int[] mCrossings = new int[CHANNELS];
+    private final int[] mPeaks = new int[CHANNELS];
+
+    /** The two previous values of every channel */
+    private final float[] mPrev = new float[CHANNELS];
+    private final float[] mPrevPrev = new float[CHANNELS];
+
+    /** Sample values of the current add(), by channel */
+    private final float[] mValues = new float[CHANNELS];
+
+
+    FeatureAccumulator()
+    {
+        reset();
+    }
+
+    /**
+     * Starts a new window.
+     */
+    public void reset()
+    {
+        mCount = 0;
+
+        for (int c = 0; c < CHANNELS; c++)
+        {
+            mMean[c] = 0.0;
+            mM2[c] = 0.0;
+            mEnergy[c] = 0.0;
+            mMin[c] = Float.MAX_VALUE;
+            mMax[c] = -Float.MAX_VALUE;
+            mSide[c] = 0;
+            mCrossings[c] = 0;
+            mPeaks[c] = 0;
+        }
+    }
+
+    /**
+     * Adds a sample of the current window.
+     *
+     * @param   time        sensor time-stamp in nanoseconds
+     */
+    public void add(long time, float x, float y, float z, float force)
+    {
+        if (mCount == 0)
+            mFirstTime = time;
+        mLastTime = time;
+        mCount++;
+
+        mValues[WindowFeatures.X] = x;
+        mValues[WindowFeatures.Y] = y;
+        mValues[WindowFeatures.Z] = z;
+        mValues[WindowFeatures.FORCE] = force;
+
+        for (int c = 0; c < CHANNELS; c++)
+            add(c, mValues[c]);
+    }
+
+    private void add(int c, float value)
+    {
+        // Peaks and crossings are judged against the mean so far
+        if (mCount >= 3)
+        {
+            double deviation = Math.sqrt(mM2[c] / (mCount - 1));
+
+            if ((mPrev[c] > mPrevPrev[c]) && (mPrev[c] >= value)
+                    && (mPrev[c] > mMean[c] + deviation))
+                mPeaks[c]++;
+        }
+
+        if (mCount > 1)
+        {
+            int side = (value > mMean[c]) ? 1
+                : ((value < mMean[c]) ? -1 : 0);
+
+            if (side != 0)
+            {
+                if ((mSide[c] != 0) && (side != mSide[c]))
+                    mCrossings[c]++;
+                mSide[c] = side;
+            }
+        }
+
+        double delta = value - mMean[c];
+        mMean[c] += delta / mCount;
+        mM2[c] += delta * (value - mMean[c]);
+        mEnergy[c] += (value * value - mEnergy[c]) / mCount;
+
+        if (value < mMin[c])
+            mMin[c] = value;
+        if (value > mMax[c])
+            mMax[c] = value;
+
+        mPrevPrev[c] = mPrev[c];
+        mPrev[c] = value;
+    }
+
+    /**
+     * Returns the features of the samples added since reset().
+     *
+     * @param   sequence    sequence number of the window
+     * @param   startTime   wall-clock time of the first sample
+     */
+    public WindowFeatures toFeatures(long sequence, long startTime)
+    {
+        int n = WindowFeatures.FEATURES;
+        float[] values = new float[CHANNELS * n];
+
+        double seconds = (mLastTime - mFirstTime) / 1000000000.0;
+
+        for (int c = 0; c < CHANNELS; c++)
+        {
+            if (mCount == 0)
+                continue;
+
+            values[c * n + WindowFeatures.MEAN] = (float) mMean[c];
+            values[c * n + WindowFeatures.VARIANCE] =
+                (float) (mM2[c] / mCount);
+            values[c * n + WindowFeatures.ENERGY] = (float) mEnergy[c];
+            values[c * n + WindowFeatures.MIN] = mMin[c];
+            values[c * n + WindowFeatures.MAX] = mMax[c];
+            values[c * n + WindowFeatures.ZERO_CROSSING_RATE] =
+                (seconds > 0.0) ? (float) (mCrossings[c] / seconds)
+                : 0.0f;
+            values[c * n + WindowFeatures.PEAKS] = mPeaks[c];
+        }
+
+        return new WindowFeatures(sequence, startTime, mCount, values);
+    }
+
+}
@@ -0,0 +1,66 @@
+package edu.ucla.cens.accelservice;
+
+
+/**
+ * Decides how far the sleep intervals are backed off from the motion
+ * seen in the recorded windows.
+ *
+ * A window is stationary if the variance of its total force is
+ * below STATIONARY_VARIANCE. Each stationary window after the first
+ * one raises the backoff level by one, which doubles the interval of
+ * the clients that allow it. Any window with motion drops the level
+ * back to zero.
+ *
+ * Only used on the sensor thread.
+ */
+class MotionGate
+{
+    /** Largest force variance of a stationary window, in g squared */
+    static final double STATIONARY_VARIANCE = 0.0005;
+
+    /** Highest backoff level, a factor of 2^MAX_LEVEL */
+    static final int MAX_LEVEL = 16;
+
+    /** Fewest samples a window needs to be judged */
+    private static final int MIN_SAMPLES = 4;
+
+    /** Number of consecutive stationary windows */
+    private int mStationary = 0;
+
+    private int mLevel = 0;
+
+
+    /**
+     * Judges a complete window.
+     *
+     * @param   variance    variance of the total force of the window
+     * @param   samples     number of samples in the window
+     * @return              the new backoff level
+     */
+    public int onWindow(double variance, int samples)
+    {
+        // Too few samples tell nothing, keep the current level
+        if (samples < MIN_SAMPLES)
+            return mLevel;
+
+        if (variance < STATIONARY_VARIANCE)
+        {
+            mStationary++;
+            if (mStationary > 1)
+                mLevel = Math.min(MAX_LEVEL, mLevel + 1);
+        }
+        else
+        {
+            mStationary = 0;
+            mLevel = 0;
+        }
+
+        return mLevel;
+    }
+
+    public int getLevel()
+    {
+        return mLevel;
+    }
+
+}
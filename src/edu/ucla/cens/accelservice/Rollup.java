@@ -0,0 +1,134 @@
+package edu.ucla.cens.accelservice;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+
+/**
+ * Summary of the samples recorded in one time bucket.
+ *
+ * The service keeps rollups at several resolutions: one per window,
+ * one per minute and one per hour. Every rollup holds the number of
+ * samples and the mean, variance, minimum and maximum of the X, Y and
+ * Z axes and of the force magnitude, indexed with the WindowFeatures
+ * channels.
+ *
+ * A rollup is immutable once it is created.
+ */
+public class Rollup implements Parcelable
+{
+    /** Values of every channel */
+    static final int MEAN = 0;
+    static final int VARIANCE = 1;
+    static final int MIN = 2;
+    static final int MAX = 3;
+    static final int VALUES = 4;
+
+    /** Wall-clock start of the bucket in milliseconds */
+    private final long mStartTime;
+
+    /** Length of the bucket, or zero for a single window */
+    private final long mResolution;
+
+    /** Number of samples in the bucket */
+    private final int mCount;
+
+    /** Values of all channels, VALUES per channel */
+    private final float[] mValues;
+
+
+    public static final Parcelable.Creator<Rollup> CREATOR
+        = new Parcelable.Creator<Rollup>()
+    {
+        public Rollup createFromParcel(Parcel in)
+        {
+            return new Rollup(in);
+        }
+
+        public Rollup[] newArray(int size)
+        {
+            return new Rollup[size];
+        }
+    };
+
+
+    Rollup(long startTime, long resolution, int count, float[] values)
+    {
+        mStartTime = startTime;
+        mResolution = resolution;
+        mCount = count;
+        mValues = values;
+    }
+
+    private Rollup(Parcel in)
+    {
+        mStartTime = in.readLong();
+        mResolution = in.readLong();
+        mCount = in.readInt();
+        mValues = in.createFloatArray();
+    }
+
+    public void writeToParcel(Parcel out, int flags)
+    {
+        out.writeLong(mStartTime);
+        out.writeLong(mResolution);
+        out.writeInt(mCount);
+        out.writeFloatArray(mValues);
+    }
+
+    public int describeContents()
+    {
+        return 0;
+    }
+
+    /**
+     * Returns the wall-clock start of the bucket in milliseconds.
+     * For a single window this is the time of its first sample.
+     */
+    public long getStartTime()
+    {
+        return mStartTime;
+    }
+
+    /**
+     * Returns the length of the bucket in milliseconds, or zero if
+     * the rollup covers a single window.
+     */
+    public long getResolution()
+    {
+        return mResolution;
+    }
+
+    public int getCount()
+    {
+        return mCount;
+    }
+
+    /**
+     * @param   channel     WindowFeatures.X, Y, Z or FORCE
+     */
+    public float getMean(int channel)
+    {
+        return mValues[channel * VALUES + MEAN];
+    }
+
+    /**
+     * @param   channel     WindowFeatures.X, Y, Z or FORCE
+     * @return              population variance of the channel
+     */
+    public float getVariance(int channel)
+    {
+        return mValues[channel * VALUES + VARIANCE];
+    }
+
+    public float getMin(int channel)
+    {
+        return mValues[channel * VALUES + MIN];
+    }
+
+    public float getMax(int channel)
+    {
+        return mValues[channel * VALUES + MAX];
+    }
+
+}
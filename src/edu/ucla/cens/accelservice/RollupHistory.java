@@ -0,0 +1,100 @@
+package edu.ucla.cens.accelservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Long-term summaries of the recorded windows at several
+ * resolutions.
+ *
+ * Every finished window is merged into a per-window, a per-minute
+ * and a per-hour tier. Each tier keeps its own number of buckets, so
+ * the coarser tiers reach much further back in the same space. A
+ * query is answered from the coarsest tier that is still fine enough
+ * for the asked resolution.
+ */
+class RollupHistory
+{
+    static final long MINUTE = 60 * 1000L;
+    static final long HOUR = 60 * MINUTE;
+
+    /** Buckets kept per tier: two weeks of windows at one per
+     * minute, 30 days of minutes and a year of hours */
+    private static final int WINDOW_BUCKETS = 14 * 24 * 60;
+    private static final int MINUTE_BUCKETS = 30 * 24 * 60;
+    private static final int HOUR_BUCKETS = 365 * 24;
+
+    /** Tiers, finest first */
+    private final RollupTier[] mTiers;
+
+
+    /**
+     * Opens the tiers in the given directory.
+     *
+     * @param   dir         directory of the tier files
+     */
+    RollupHistory(File dir) throws IOException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+
+        mTiers = new RollupTier[] {
+            new RollupTier(new File(dir, "window.tier"), 0,
+                    WINDOW_BUCKETS),
+            new RollupTier(new File(dir, "minute.tier"), MINUTE,
+                    MINUTE_BUCKETS),
+            new RollupTier(new File(dir, "hour.tier"), HOUR,
+                    HOUR_BUCKETS)
+        };
+    }
+
+    /**
+     * Merges a finished window into every tier.
+     *
+     * @param   features    features of the window
+     */
+    public void add(WindowFeatures features)
+    {
+        for (RollupTier tier : mTiers)
+            tier.add(features);
+    }
+
+    /**
+     * Returns the rollups of a time range.
+     *
+     * @param   startTime   first wall-clock time in milliseconds
+     * @param   endTime     last wall-clock time in milliseconds
+     * @param   resolution  longest bucket the caller accepts, in
+     *                      milliseconds, zero for single windows
+     * @param   max         largest number of rollups to return
+     * @return              rollups of the coarsest fitting tier,
+     *                      oldest first
+     */
+    public List<Rollup> query(long startTime, long endTime,
+            long resolution, int max)
+    {
+        RollupTier tier = mTiers[0];
+
+        for (RollupTier candidate : mTiers)
+            if (candidate.getResolution() <= resolution)
+                tier = candidate;
+
+        List<Rollup> rollups = new ArrayList<Rollup>();
+        tier.query(startTime, endTime, rollups, max);
+
+        return rollups;
+    }
+
+    /**
+     * Writes all the tiers out.
+     */
+    public void close()
+    {
+        for (RollupTier tier : mTiers)
+            tier.force();
+    }
+
+}
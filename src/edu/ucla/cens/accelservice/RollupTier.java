@@ -0,0 +1,341 @@
+package edu.ucla.cens.accelservice;
+
+import edu.ucla.cens.systemlog.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+
+/**
+ * Rollups of one resolution in a memory-mapped ring file.
+ *
+ * Each window is merged into the bucket of its start time. Counts,
+ * means and variances are merged with the pairwise update of Chan et
+ * al., so a bucket never needs the samples again. A bucket is closed
+ * when a window of a later bucket arrives. A tier of resolution zero
+ * keeps every window as its own bucket.
+ *
+ * The open bucket is written to the slot after the closed ones on
+ * every update, so it survives a restart. The ring keeps capacity - 1
+ * closed buckets, the oldest are overwritten.
+ *
+ * Layout, in little-endian byte order:
+ *
+ *   header (HEADER_SIZE bytes)
+ *     0  int   MAGIC
+ *     4  int   VERSION
+ *     8  int   capacity
+ *     16 long  resolution in milliseconds
+ *     24 long  number of closed buckets so far
+ *
+ *   records (RECORD_SIZE bytes each), bucket n is in slot
+ *   n % capacity
+ *     0  long  start time
+ *     8  int   number of samples
+ *     16 float mean, variance, min and max of each channel
+ */
+class RollupTier
+{
+    /** TAG string used for logging */
+    private static final String TAG = "RollupTier";
+
+    static final int MAGIC = 0x41434355;
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 16
+        + WindowFeatures.CHANNELS * Rollup.VALUES * 4;
+
+    private static final int OFF_MAGIC = 0;
+    private static final int OFF_VERSION = 4;
+    private static final int OFF_CAPACITY = 8;
+    private static final int OFF_RESOLUTION = 16;
+    private static final int OFF_CLOSED = 24;
+
+    private static final int OFF_START = 0;
+    private static final int OFF_COUNT = 8;
+    private static final int OFF_VALUES = 16;
+
+    /** Offsets of the values within a channel */
+    private static final int MEAN_OFFSET = Rollup.MEAN * 4;
+    private static final int VARIANCE_OFFSET = Rollup.VARIANCE * 4;
+    private static final int MIN_OFFSET = Rollup.MIN * 4;
+    private static final int MAX_OFFSET = Rollup.MAX * 4;
+
+    private static final int CHANNELS = WindowFeatures.CHANNELS;
+
+    /** Number of updates between two flushes */
+    private static final int FORCE_EVERY = 16;
+
+    private final long mResolution;
+    private final int mCapacity;
+    private final MappedByteBuffer mBuffer;
+
+    /** Number of closed buckets so far */
+    private long mClosed;
+
+    /** The open bucket, empty if mCount is zero */
+    private long mStart;
+    private long mCount = 0;
+    private final double[] mMean = new double[CHANNELS];
+    private final double[] mM2 = new double[CHANNELS];
+    private final double[] mMin = new double[CHANNELS];
+    private final double[] mMax = new double[CHANNELS];
+
+    private int mUnforced = 0;
+
+
+    /**
+     * Opens the ring file of the tier, creating it if it does not
+     * match the resolution and capacity.
+     *
+     * @param   file        file to keep the tier in
+     * @param   resolution  length of a bucket in milliseconds, or
+     *                      zero for one bucket per window
+     * @param   capacity    number of buckets kept
+     */
+    RollupTier(File file, long resolution, int capacity)
+        throws IOException
+    {
+        mResolution = resolution;
+        mCapacity = capacity;
+
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            if (raf.length() != size)
+            {
+                raf.setLength(0);
+                raf.setLength(size);
+            }
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    0, size);
+        }
+        finally
+        {
+            // The mapping stays valid after the channel is closed
+            raf.close();
+        }
+
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if ((mBuffer.getInt(OFF_MAGIC) == MAGIC)
+                && (mBuffer.getInt(OFF_VERSION) == VERSION)
+                && (mBuffer.getInt(OFF_CAPACITY) == capacity)
+                && (mBuffer.getLong(OFF_RESOLUTION) == resolution))
+        {
+            mClosed = mBuffer.getLong(OFF_CLOSED);
+            if (resolution > 0)
+                readOpen();
+
+            Log.i(TAG, file.getName() + " holds " + mClosed
+                    + " buckets");
+        }
+        else
+        {
+            mClosed = 0;
+            mBuffer.putInt(OFF_VERSION, VERSION);
+            mBuffer.putInt(OFF_CAPACITY, capacity);
+            mBuffer.putLong(OFF_RESOLUTION, resolution);
+            mBuffer.putLong(OFF_CLOSED, 0);
+            mBuffer.putInt(OFF_MAGIC, MAGIC);
+        }
+    }
+
+    public long getResolution()
+    {
+        return mResolution;
+    }
+
+    /**
+     * Merges a finished window into its bucket.
+     *
+     * @param   features    features of the window
+     */
+    public synchronized void add(WindowFeatures features)
+    {
+        int count = features.getCount();
+
+        if (count == 0)
+            return;
+
+        long time = features.getStartTime();
+        long start = (mResolution > 0) ? time - time % mResolution : time;
+
+        // Also closes the bucket when the clock went back
+        if ((mCount > 0) && (start != mStart))
+            close();
+
+        if (mCount == 0)
+        {
+            mStart = start;
+            for (int c = 0; c < CHANNELS; c++)
+            {
+                mMean[c] = 0.0;
+                mM2[c] = 0.0;
+                mMin[c] = Double.MAX_VALUE;
+                mMax[c] = -Double.MAX_VALUE;
+            }
+        }
+
+        long total = mCount + count;
+
+        for (int c = 0; c < CHANNELS; c++)
+        {
+            double delta = features.getMean(c) - mMean[c];
+
+            mM2[c] += (double) features.getVariance(c) * count
+                + delta * delta * mCount * count / total;
+            mMean[c] += delta * count / total;
+            mMin[c] = Math.min(mMin[c], features.getMin(c));
+            mMax[c] = Math.max(mMax[c], features.getMax(c));
+        }
+
+        mCount = total;
+        writeOpen();
+
+        if (mResolution == 0)
+            close();
+
+        if (++mUnforced >= FORCE_EVERY)
+            force();
+    }
+
+    /**
+     * Adds the buckets that overlap a time range to a list, oldest
+     * first, including the open one.
+     *
+     * @param   startTime   first wall-clock time in milliseconds
+     * @param   endTime     last wall-clock time in milliseconds
+     * @param   out         list the rollups are added to
+     * @param   max         largest number of rollups to add
+     */
+    public synchronized void query(long startTime, long endTime,
+            List<Rollup> out, int max)
+    {
+        // A bucket overlaps the range if it ends after startTime
+        long first = (mResolution > 0)
+            ? startTime - mResolution + 1 : startTime;
+
+        long low = Math.max(0, mClosed - (mCapacity - 1));
+        long high = mClosed;
+
+        while (low < high)
+        {
+            long mid = (low + high) >>> 1;
+
+            if (mBuffer.getLong(offsetOf(mid) + OFF_START) < first)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        for (long n = low; (n < mClosed) && (out.size() < max); n++)
+        {
+            int offset = offsetOf(n);
+
+            if (mBuffer.getLong(offset + OFF_START) > endTime)
+                return;
+
+            out.add(read(offset));
+        }
+
+        if ((mCount > 0) && (mStart >= first) && (mStart <= endTime)
+                && (out.size() < max))
+            out.add(read(offsetOf(mClosed)));
+    }
+
+    /**
+     * Writes the ring out.
+     */
+    public synchronized void force()
+    {
+        mBuffer.force();
+        mUnforced = 0;
+    }
+
+    private int offsetOf(long bucket)
+    {
+        return HEADER_SIZE + (int) (bucket % mCapacity) * RECORD_SIZE;
+    }
+
+    /*
+     * The open bucket is already in its slot, so closing it only
+     * moves the count. The slot of the next bucket still holds the
+     * oldest one, which is emptied first so it is not taken for an 
+     * open bucket after a restart.
+     */
+    private void close()
+    {
+        mBuffer.putInt(offsetOf(mClosed + 1) + OFF_COUNT, 0);
+        mClosed++;
+        mBuffer.putLong(OFF_CLOSED, mClosed);
+        mCount = 0;
+    }
+
+    private void writeOpen()
+    {
+        int offset = offsetOf(mClosed);
+
+        mBuffer.putLong(offset + OFF_START, mStart);
+        mBuffer.putInt(offset + OFF_COUNT, (int) Math.min(mCount,
+                    Integer.MAX_VALUE));
+
+        int p = offset + OFF_VALUES;
+        for (int c = 0; c < CHANNELS; c++)
+        {
+            mBuffer.putFloat(p + MEAN_OFFSET, (float) mMean[c]);
+            mBuffer.putFloat(p + VARIANCE_OFFSET,
+                    (float) (mM2[c] / mCount));
+            mBuffer.putFloat(p + MIN_OFFSET, (float) mMin[c]);
+            mBuffer.putFloat(p + MAX_OFFSET, (float) mMax[c]);
+            p += Rollup.VALUES * 4;
+        }
+    }
+
+    /*
+     * Restores the open bucket written before a restart.
+     */
+    private void readOpen()
+    {
+        int offset = offsetOf(mClosed);
+
+        mCount = mBuffer.getInt(offset + OFF_COUNT);
+        if (mCount <= 0)
+        {
+            mCount = 0;
+            return;
+        }
+
+        mStart = mBuffer.getLong(offset + OFF_START);
+
+        int p = offset + OFF_VALUES;
+        for (int c = 0; c < CHANNELS; c++)
+        {
+            mMean[c] = mBuffer.getFloat(p + MEAN_OFFSET);
+            mM2[c] = mBuffer.getFloat(p + VARIANCE_OFFSET) * mCount;
+            mMin[c] = mBuffer.getFloat(p + MIN_OFFSET);
+            mMax[c] = mBuffer.getFloat(p + MAX_OFFSET);
+            p += Rollup.VALUES * 4;
+        }
+    }
+
+    private Rollup read(int offset)
+    {
+        float[] values = new float[CHANNELS * Rollup.VALUES];
+
+        for (int i = 0; i < values.length; i++)
+            values[i] = mBuffer.getFloat(offset + OFF_VALUES + i * 4);
+
+        return new Rollup(mBuffer.getLong(offset + OFF_START),
+                mResolution, mBuffer.getInt(offset + OFF_COUNT), values);
+    }
+
+}
@@ -0,0 +1,383 @@
+package edu.ucla.cens.accelservice;
+
+import android.hardware.SensorManager;
+
+
+/**
+ * Preallocated store for the samples of one reading window.
+ *
+ * Values are kept in primitive float arrays so that recording a
+ * sample does not allocate. The arrays are sized once from the
+ * sampling rate and the reading interval and are reused across
+ * duty cycles. They only grow if the sensor delivers more samples
+ * than expected. A completed window is copied out once with
+ * toWindow() before the buffer is reused.
+ *
+ * A window can also be kept quantized: every value is rounded to one
+ * of the 16-bit steps that span the range of the sensor, and every
+ * time-stamp to a 32-bit count of microseconds after the sensor base.
+ * A sample then takes 12 bytes instead of 24. The steps are far finer
+ * than the resolution of the sensors, and the time-stamps finer than
+ * their jitter. The windows copied out keep the steps. Windows longer
+ * than MAX_QUANTIZED_INTERVAL are never quantized, so that their
+ * time-stamps fit.
+ */
+class SampleBuffer
+{
+    /** Extra room kept on top of the expected sample count */
+    private static final int CAPACITY_SLACK = 16;
+
+    private static final int CHANNELS = WindowFeatures.CHANNELS;
+
+    /** 
+     * Longest quantized window in milliseconds, half the range of
+     * its time-stamps
+     */
+    static final long MAX_QUANTIZED_INTERVAL = Integer.MAX_VALUE 
+        * AccelWindow.TIME_STEP / 1000000L / 2;
+
+    /** Values, null while the window is quantized */
+    private float[] mX;
+    private float[] mY;
+    private float[] mZ;
+    private float[] mForce;
+
+    /** CHANNELS steps per sample, null unless quantized */
+    private short[] mSteps;
+
+    /** Time-stamps, null while the window is quantized */
+    private long[] mTime;
+
+    /** 
+     * Time-stamps in AccelWindow.TIME_STEP units after mSensorBase,
+     * null unless quantized
+     */
+    private int[] mTimeSteps;
+
+    /** Size of a step of the axes and of the force */
+    private float mStep;
+    private float mForceStep;
+
+    /** Rate constant the current window is recorded at */
+    private int mRate;
+
+    /** Wall-clock and sensor time of the first sample */
+    private long mWallBase;
+    private long mSensorBase;
+
+    /** Set if anchor() fixed the bases of the current window */
+    private boolean mAnchored;
+
+    /** Number of valid samples in the arrays */
+    private int mCount;
+
+
+    SampleBuffer(int rate, long interval)
+    {
+        allocate(capacityFor(rate, interval), false);
+        mRate = rate;
+        mCount = 0;
+    }
+
+    /**
+     * Returns the number of slots needed to hold a window of the
+     * given length at the given rate.
+     *
+     * @param   rate        sensor rate constant
+     * @param   interval    length of the window in milliseconds
+     * @return              number of samples to preallocate
+     */
+    static int capacityFor(int rate, long interval)
+    {
+        long period = AccelService.ratePeriod(rate);
+        long expected = interval / period;
+
+        // Sensors do not keep their nominal rate exactly
+        return (int) (expected + expected / 4 + CAPACITY_SLACK);
+    }
+
+    /**
+     * Empties the buffer and makes sure a window of the given
+     * length fits without reallocation.
+     *
+     * @param   rate        sensor rate constant of the new window
+     * @param   interval    length of the window in milliseconds
+     * @param   range       largest value of the sensor in m/s^2 to
+     *                      quantize the window, or zero to keep it as
+     *                      floats
+     */
+    public void reset(int rate, long interval, float range)
+    {
+        int capacity = capacityFor(rate, interval);
+        boolean quantized = (range > 0.0f) 
+            && (interval <= MAX_QUANTIZED_INTERVAL);
+
+        if ((capacity > capacity()) 
+                || (quantized != (mSteps != null)))
+            allocate(Math.max(capacity, capacity()), quantized);
+
+        if (quantized)
+        {
+            // The force of a sample is at most sqrt(3) times the 
+            // range, in units of g
+            mStep = range / Short.MAX_VALUE;
+            mForceStep = (float) (range * Math.sqrt(3.0)
+                    / SensorManager.GRAVITY_EARTH / Short.MAX_VALUE);
+        }
+
+        mRate = rate;
+        mCount = 0;
+        mAnchored = false;
+    }
+
+    /**
+     * Sets the wall-clock and sensor time of the window instead of
+     * taking them from the first sample. Used when the first samples
+     * of a window were taken before the window started.
+     *
+     * @param   wallBase    wall-clock time in milliseconds
+     * @param   sensorBase  sensor time-stamp of wallBase in 
+     *                      nanoseconds
+     */
+    public void anchor(long wallBase, long sensorBase)
+    {
+        mWallBase = wallBase;
+        mSensorBase = sensorBase;
+        mAnchored = true;
+    }
+
+    /**
+     * Records one sample.
+     *
+     * The first sample of a window also reads the wall clock once to
+     * map the sensor clock of the window to wall-clock time.
+     *
+     * @param   time        SensorEvent time-stamp in nanoseconds
+     */
+    public void add(long time, float x, float y, float z, float force)
+    {
+        if ((mCount == 0) && !mAnchored)
+        {
+            mWallBase = System.currentTimeMillis();
+            mSensorBase = time;
+        }
+
+        if (mCount == capacity())
+            grow();
+
+        if (mSteps != null)
+        {
+            int p = mCount * CHANNELS;
+            mSteps[p + WindowFeatures.X] = AccelWindow.quantize(x, mStep);
+            mSteps[p + WindowFeatures.Y] = AccelWindow.quantize(y, mStep);
+            mSteps[p + WindowFeatures.Z] = AccelWindow.quantize(z, mStep);
+            mSteps[p + WindowFeatures.FORCE] = AccelWindow.quantize(force,
+                    mForceStep);
+            mTimeSteps[mCount] = AccelWindow.quantizeTime(time, 
+                    mSensorBase);
+        }
+        else
+        {
+            mX[mCount] = x;
+            mY[mCount] = y;
+            mZ[mCount] = z;
+            mForce[mCount] = force;
+            mTime[mCount] = time;
+        }
+
+        mCount++;
+    }
+
+    public int size()
+    {
+        return mCount;
+    }
+
+    public int capacity()
+    {
+        return (mTime != null) ? mTime.length : mTimeSteps.length;
+    }
+
+    public int getRate()
+    {
+        return mRate;
+    }
+
+    /**
+     * Returns the wall-clock time of the first sample in 
+     * milliseconds.
+     */
+    public long getWallBase()
+    {
+        return mWallBase;
+    }
+
+    /**
+     * Returns the sensor time-stamp of the first sample in
+     * nanoseconds.
+     */
+    public long getSensorBase()
+    {
+        return mSensorBase;
+    }
+
+    /**
+     * Returns the index of the first sample taken at or after the
+     * given sensor time, or size() if there is none.
+     *
+     * @param   time        sensor time in nanoseconds
+     * @return              index of the sample
+     */
+    public int indexAfter(long time)
+    {
+        if (mTime != null)
+            return AccelWindow.indexAfter(mTime, mCount, time);
+
+        return AccelWindow.indexAfter(mTimeSteps, mCount, mSensorBase,
+                time);
+    }
+
+    /**
+     * Returns the sensor time-stamp of a recorded sample.
+     *
+     * @param   index       index of the sample
+     * @return              time-stamp in nanoseconds
+     */
+    public long timeAt(int index)
+    {
+        if (mTime != null)
+            return mTime[index];
+
+        return mSensorBase + mTimeSteps[index] * AccelWindow.TIME_STEP;
+    }
+
+    /**
+     * Returns one value of a recorded sample.
+     *
+     * @param   channel     WindowFeatures.X, Y, Z or FORCE
+     * @param   index       index of the sample
+     */
+    public float valueAt(int channel, int index)
+    {
+        if (mSteps != null)
+            return mSteps[index * CHANNELS + channel]
+                * ((channel == WindowFeatures.FORCE) ? mForceStep : mStep);
+
+        switch (channel)
+        {
+        case WindowFeatures.X:
+            return mX[index];
+        case WindowFeatures.Y:
+            return mY[index];
+        case WindowFeatures.Z:
+            return mZ[index];
+        default:
+            return mForce[index];
+        }
+    }
+
+    /**
+     * Returns an immutable copy of the recorded samples.
+     *
+     * @param   sequence    sequence number of the window
+     * @return              window holding the samples of this buffer
+     */
+    public AccelWindow toWindow(long sequence)
+    {
+        return toWindow(sequence, 0, mCount);
+    }
+
+    /**
+     * Returns an immutable copy of a range of the recorded samples.
+     *
+     * @param   sequence    sequence number of the window
+     * @param   from        index of the first sample to copy
+     * @param   to          index after the last sample to copy
+     * @return              window holding the samples in the range
+     */
+    public AccelWindow toWindow(long sequence, int from, int to)
+    {
+        if (mSteps != null)
+        {
+            short[] steps = new short[(to - from) * CHANNELS];
+            System.arraycopy(mSteps, from * CHANNELS, steps, 0, 
+                    steps.length);
+
+            int[] time = new int[to - from];
+            System.arraycopy(mTimeSteps, from, time, 0, time.length);
+
+            return new AccelWindow(sequence, mRate, mWallBase, 
+                    mSensorBase, time, steps, mStep, mForceStep);
+        }
+
+        return new AccelWindow(sequence, mRate, mWallBase, mSensorBase,
+                copyOf(mTime, from, to), copyOf(mX, from, to), 
+                copyOf(mY, from, to), copyOf(mZ, from, to), 
+                copyOf(mForce, from, to));
+    }
+
+    private static float[] copyOf(float[] values, int from, int to)
+    {
+        float[] copy = new float[to - from];
+        System.arraycopy(values, from, copy, 0, to - from);
+        return copy;
+    }
+
+    private static long[] copyOf(long[] values, int from, int to)
+    {
+        long[] copy = new long[to - from];
+        System.arraycopy(values, from, copy, 0, to - from);
+        return copy;
+    }
+
+    /*
+     * Allocates the arrays of one of the two forms and drops the 
+     * others. The samples are lost.
+     */
+    private void allocate(int capacity, boolean quantized)
+    {
+        if (quantized)
+        {
+            mX = mY = mZ = mForce = null;
+            mSteps = new short[capacity * CHANNELS];
+            mTime = null;
+            mTimeSteps = new int[capacity];
+        }
+        else
+        {
+            mX = new float[capacity];
+            mY = new float[capacity];
+            mZ = new float[capacity];
+            mForce = new float[capacity];
+            mSteps = null;
+            mTime = new long[capacity];
+            mTimeSteps = null;
+        }
+    }
+
+    private void grow()
+    {
+        int capacity = capacity() * 2;
+
+        float[] x = mX, y = mY, z = mZ, force = mForce;
+        short[] steps = mSteps;
+        long[] time = mTime;
+        int[] timeSteps = mTimeSteps;
+        allocate(capacity, steps != null);
+
+        if (steps != null)
+        {
+            System.arraycopy(steps, 0, mSteps, 0, mCount * CHANNELS);
+            System.arraycopy(timeSteps, 0, mTimeSteps, 0, mCount);
+        }
+        else
+        {
+            System.arraycopy(x, 0, mX, 0, mCount);
+            System.arraycopy(y, 0, mY, 0, mCount);
+            System.arraycopy(z, 0, mZ, 0, mCount);
+            System.arraycopy(force, 0, mForce, 0, mCount);
+            System.arraycopy(time, 0, mTime, 0, mCount);
+        }
+    }
+
+}
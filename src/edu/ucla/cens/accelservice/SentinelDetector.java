@@ -0,0 +1,156 @@
+package edu.ucla.cens.accelservice;
+
+
+/**
+ * Watches the low-rate samples taken between duty cycles for the
+ * start of an event.
+ *
+ * An event starts when the magnitude of a sample deviates from 1 g by
+ * more than the threshold. The last PRE_TRIGGER_SAMPLES samples are
+ * kept in preallocated arrays, so the capture that follows can begin
+ * with the samples that led up to the event. They are taken at the
+ * low rate of the sentinel, so the capture interpolates them at its
+ * own rate with interpolate().
+ */
+class SentinelDetector
+{
+    /** Number of samples kept from before the trigger */
+    static final int PRE_TRIGGER_SAMPLES = 32;
+
+    private final long[] mTimes = new long[PRE_TRIGGER_SAMPLES];
+    private final float[] mX = new float[PRE_TRIGGER_SAMPLES];
+    private final float[] mY = new float[PRE_TRIGGER_SAMPLES];
+    private final float[] mZ = new float[PRE_TRIGGER_SAMPLES];
+    private final float[] mForce = new float[PRE_TRIGGER_SAMPLES];
+
+    /** Number of samples seen since start() */
+    private int mCount;
+
+    /** Deviation from 1 g that triggers, in units of g */
+    private double mThreshold;
+
+    private boolean mActive = false;
+
+
+    /**
+     * Starts watching with an empty history.
+     *
+     * @param   threshold   deviation from 1 g that triggers, in g
+     */
+    public void start(double threshold)
+    {
+        mThreshold = threshold;
+        mCount = 0;
+        mActive = true;
+    }
+
+    public void setThreshold(double threshold)
+    {
+        mThreshold = threshold;
+    }
+
+    public void stop()
+    {
+        mActive = false;
+    }
+
+    public boolean isActive()
+    {
+        return mActive;
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param   time        sensor time-stamp in nanoseconds
+     * @param   force       magnitude of the sample in g
+     * @return              true if the sample triggers a capture
+     */
+    public boolean add(long time, float x, float y, float z, float force)
+    {
+        int i = mCount % PRE_TRIGGER_SAMPLES;
+        mTimes[i] = time;
+        mX[i] = x;
+        mY[i] = y;
+        mZ[i] = z;
+        mForce[i] = force;
+
+        // Keeps the count from overflowing without moving the slots
+        if (++mCount == 2 * PRE_TRIGGER_SAMPLES)
+            mCount = PRE_TRIGGER_SAMPLES;
+
+        return Math.abs(force - 1.0) > mThreshold;
+    }
+
+    /**
+     * Returns the number of kept samples.
+     */
+    public int size()
+    {
+        return Math.min(mCount, PRE_TRIGGER_SAMPLES);
+    }
+
+    /*
+     * Kept samples are indexed oldest first.
+     */
+    private int slot(int index)
+    {
+        return (mCount - size() + index) % PRE_TRIGGER_SAMPLES;
+    }
+
+    public long timeAt(int index)
+    {
+        return mTimes[slot(index)];
+    }
+
+    /**
+     * Returns one value of a kept sample.
+     *
+     * @param   channel     WindowFeatures.X, Y, Z or FORCE
+     * @param   index       index of the sample, oldest first
+     */
+    public float valueAt(int channel, int index)
+    {
+        switch (channel)
+        {
+        case WindowFeatures.X:
+            return mX[slot(index)];
+        case WindowFeatures.Y:
+            return mY[slot(index)];
+        case WindowFeatures.Z:
+            return mZ[slot(index)];
+        default:
+            return mForce[slot(index)];
+        }
+    }
+
+    /**
+     * Returns one value of the kept samples linearly interpolated at
+     * a time between the oldest and the newest of them.
+     *
+     * @param   channel     WindowFeatures.X, Y, Z or FORCE
+     * @param   time        sensor time in nanoseconds
+     */
+    public float interpolate(int channel, long time)
+    {
+        int count = size();
+        if (count < 2)
+            return valueAt(channel, count - 1);
+
+        int i = 1;
+        while ((i < count - 1) && (timeAt(i) < time))
+            i++;
+
+        long before = timeAt(i - 1);
+        long after = timeAt(i);
+        float from = valueAt(channel, i - 1);
+        float to = valueAt(channel, i);
+
+        if (after <= before)
+            return to;
+
+        return from + (to - from) 
+            * (float) ((double) (time - before) / (after - before));
+    }
+
+}
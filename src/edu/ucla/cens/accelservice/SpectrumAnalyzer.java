@@ -0,0 +1,237 @@
+package edu.ucla.cens.accelservice;
+
+
+/**
+ * Computes the spectrum of a finished window on the sensor thread.
+ *
+ * The window is cut into Hann-windowed segments of a power-of-two
+ * length that overlap by half, and the power spectra of the segments
+ * are averaged. Each requested frequency also gets a Goertzel filter
+ * over the whole window, which resolves it more finely than the
+ * segments do at the cost of one multiply-add per sample.
+ *
+ * The FFT works in place on preallocated arrays. The twiddle factors,
+ * the bit-reversal table and the Hann window are only rebuilt when
+ * the segment length changes.
+ */
+class SpectrumAnalyzer
+{
+    /** Longest segment */
+    static final int MAX_FFT_SIZE = 256;
+
+    /** Windows shorter than this get no FFT */
+    private static final int MIN_FFT_SIZE = 8;
+
+    private static final int CHANNELS = WindowFeatures.CHANNELS;
+
+    private int mSize = 0;
+    private final double[] mRe = new double[MAX_FFT_SIZE];
+    private final double[] mIm = new double[MAX_FFT_SIZE];
+    private final double[] mHann = new double[MAX_FFT_SIZE];
+    private final double[] mCos = new double[MAX_FFT_SIZE / 2];
+    private final double[] mSin = new double[MAX_FFT_SIZE / 2];
+    private final int[] mReverse = new int[MAX_FFT_SIZE];
+
+    /** Sum of the Hann weights of a segment */
+    private double mHannSum;
+
+
+    /**
+     * Computes the spectrum of the samples in the buffer.
+     *
+     * @param   sequence    sequence number of the window
+     * @param   buffer      samples of the finished window
+     * @param   frequencies frequencies of the Goertzel filters in Hz
+     * @return              the spectrum, or null if the window is
+     *                      too short to measure its sample rate
+     */
+    public WindowSpectrum analyze(long sequence, SampleBuffer buffer,
+            float[] frequencies)
+    {
+        int count = buffer.size();
+
+        if (count < 2)
+            return null;
+
+        long duration = buffer.timeAt(count - 1) - buffer.timeAt(0);
+
+        if (duration <= 0)
+            return null;
+
+        double rate = (count - 1) * 1000000000.0 / duration;
+
+        int size = 0;
+        if (count >= MIN_FFT_SIZE)
+        {
+            size = MIN_FFT_SIZE;
+            while ((size * 2 <= count) && (size * 2 <= MAX_FFT_SIZE))
+                size *= 2;
+
+            prepare(size);
+        }
+
+        int bins = (size > 0) ? size / 2 + 1 : 0;
+        float[] spectrum = new float[CHANNELS * bins];
+        float[] bandPower = new float[CHANNELS * frequencies.length];
+
+        for (int c = 0; c < CHANNELS; c++)
+        {
+            double sum = 0.0;
+            for (int i = 0; i < count; i++)
+                sum += buffer.valueAt(c, i);
+            double mean = sum / count;
+
+            if (size > 0)
+                welch(buffer, c, mean, spectrum, c * bins);
+
+            for (int b = 0; b < frequencies.length; b++)
+                bandPower[c * frequencies.length + b] = (float)
+                    goertzel(buffer, c, mean, frequencies[b] / rate);
+        }
+
+        return new WindowSpectrum(sequence, (float) rate, size,
+                spectrum, frequencies, bandPower);
+    }
+
+    /*
+     * Averages the power spectra of the segments of one channel.
+     */
+    private void welch(SampleBuffer buffer, int channel, double mean,
+            float[] out, int offset)
+    {
+        int count = buffer.size();
+        int hop = mSize / 2;
+        int segments = 0;
+
+        for (int start = 0; start + mSize <= count; start += hop)
+        {
+            for (int i = 0; i < mSize; i++)
+            {
+                mRe[i] = (buffer.valueAt(channel, start + i) - mean)
+                    * mHann[i];
+                mIm[i] = 0.0;
+            }
+
+            fft();
+
+            for (int k = 0; k <= hop; k++)
+                out[offset + k] += (float) (mRe[k] * mRe[k]
+                        + mIm[k] * mIm[k]);
+
+            segments++;
+        }
+
+        // Squared amplitude of a sine that falls on a bin
+        double scale = 4.0 / (mHannSum * mHannSum * segments);
+
+        for (int k = 0; k <= hop; k++)
+            out[offset + k] *= scale;
+    }
+
+    /*
+     * Power of one channel at the given frequency, in cycles per
+     * sample.
+     */
+    private static double goertzel(SampleBuffer buffer, int channel,
+            double mean, double frequency)
+    {
+        if ((frequency <= 0.0) || (frequency >= 0.5))
+            return 0.0;
+
+        int count = buffer.size();
+        double coeff = 2.0 * Math.cos(2.0 * Math.PI * frequency);
+        double s1 = 0.0, s2 = 0.0;
+
+        for (int i = 0; i < count; i++)
+        {
+            double s0 = buffer.valueAt(channel, i) - mean
+                + coeff * s1 - s2;
+            s2 = s1;
+            s1 = s0;
+        }
+
+        double power = s1 * s1 + s2 * s2 - coeff * s1 * s2;
+
+        return 4.0 * power / ((double) count * count);
+    }
+
+    /*
+     * Builds the tables of a segment length.
+     */
+    private void prepare(int size)
+    {
+        if (size == mSize)
+            return;
+
+        mSize = size;
+
+        int bits = 0;
+        while ((1 << bits) < size)
+            bits++;
+
+        mHannSum = 0.0;
+
+        for (int i = 0; i < size; i++)
+        {
+            mHann[i] = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * i
+                    / (size - 1));
+            mHannSum += mHann[i];
+
+            int reversed = 0;
+            for (int b = 0; b < bits; b++)
+                if ((i & (1 << b)) != 0)
+                    reversed |= 1 << (bits - 1 - b);
+            mReverse[i] = reversed;
+        }
+
+        for (int k = 0; k < size / 2; k++)
+        {
+            mCos[k] = Math.cos(2.0 * Math.PI * k / size);
+            mSin[k] = Math.sin(2.0 * Math.PI * k / size);
+        }
+    }
+
+    /*
+     * Iterative radix-2 FFT of mRe and mIm.
+     */
+    private void fft()
+    {
+        int n = mSize;
+
+        for (int i = 0; i < n; i++)
+        {
+            int j = mReverse[i];
+
+            if (j > i)
+            {
+                double t = mRe[i]; mRe[i] = mRe[j]; mRe[j] = t;
+                t = mIm[i]; mIm[i] = mIm[j]; mIm[j] = t;
+            }
+        }
+
+        for (int len = 2; len <= n; len <<= 1)
+        {
+            int half = len / 2;
+            int step = n / len;
+
+            for (int i = 0; i < n; i += len)
+            {
+                for (int k = 0; k < half; k++)
+                {
+                    double c = mCos[k * step];
+                    double s = -mSin[k * step];
+                    int a = i + k, b = a + half;
+
+                    double tr = mRe[b] * c - mIm[b] * s;
+                    double ti = mRe[b] * s + mIm[b] * c;
+
+                    mRe[b] = mRe[a] - tr;
+                    mIm[b] = mIm[a] - ti;
+                    mRe[a] += tr;
+                    mIm[a] += ti;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package edu.ucla.cens.accelservice;
+
+import android.hardware.SensorManager;
+
+
+/**
+ * Tells when the accelerometer has settled after it was turned on.
+ *
+ * The sensor is considered stable once the last STABLE_COUNT samples
+ * arrived at a steady pace, close to the nominal period of the rate,
+ * and their magnitude stopped drifting. Samples are kept in
+ * preallocated arrays, so feeding the detector does not allocate.
+ */
+class WarmupDetector
+{
+    /** Number of consecutive samples that must look stable */
+    static final int STABLE_COUNT = 8;
+
+    /** Largest deviation of an inter-arrival time from the mean */
+    private static final double PERIOD_TOLERANCE = 0.25;
+
+    /** Slowest mean inter-arrival time, in nominal periods */
+    private static final double MAX_PERIOD_RATIO = 2.0;
+
+    /** Largest spread of the magnitudes, in units of g */
+    private static final double MAGNITUDE_TOLERANCE = 0.05;
+
+    private final long[] mTimes = new long[STABLE_COUNT];
+    private final double[] mMagnitudes = new double[STABLE_COUNT];
+
+    /** Number of samples seen since start() */
+    private int mCount;
+
+    /** Nominal period in nanoseconds */
+    private long mPeriod;
+
+    private boolean mActive = false;
+
+
+    /**
+     * Starts watching a new warm-up.
+     *
+     * @param   rate        sensor rate constant the sensor runs at
+     */
+    public void start(int rate)
+    {
+        mPeriod = AccelService.ratePeriod(rate) * 1000000L;
+        mCount = 0;
+        mActive = true;
+    }
+
+    public void stop()
+    {
+        mActive = false;
+    }
+
+    public boolean isActive()
+    {
+        return mActive;
+    }
+
+    /**
+     * Adds a sample received during warm-up.
+     *
+     * @param   time        sensor time-stamp in nanoseconds
+     * @return              true if the sensor is now stable
+     */
+    public boolean add(long time, float x, float y, float z)
+    {
+        double grav = SensorManager.GRAVITY_EARTH;
+        double nx = x/grav, ny = y/grav, nz = z/grav;
+
+        int i = mCount % STABLE_COUNT;
+        mTimes[i] = time;
+        mMagnitudes[i] = Math.sqrt(nx*nx + ny*ny + nz*nz);
+        mCount++;
+
+        return (mCount >= STABLE_COUNT) && isStable();
+    }
+
+    /*
+     * Checks the last STABLE_COUNT samples. The oldest one is at
+     * mCount % STABLE_COUNT.
+     */
+    private boolean isStable()
+    {
+        int first = mCount % STABLE_COUNT;
+        int last = (mCount - 1) % STABLE_COUNT;
+
+        double mean = (double) (mTimes[last] - mTimes[first])
+            / (STABLE_COUNT - 1);
+
+        if ((mean <= 0) || (mean > mPeriod * MAX_PERIOD_RATIO))
+            return false;
+
+        double minMag = Double.MAX_VALUE, maxMag = 0.0;
+
+        for (int k = 0; k < STABLE_COUNT; k++)
+        {
+            int i = (first + k) % STABLE_COUNT;
+
+            if (k > 0)
+            {
+                int prev = (i + STABLE_COUNT - 1) % STABLE_COUNT;
+                double delta = mTimes[i] - mTimes[prev];
+
+                if (Math.abs(delta - mean) > mean * PERIOD_TOLERANCE)
+                    return false;
+            }
+
+            minMag = Math.min(minMag, mMagnitudes[i]);
+            maxMag = Math.max(maxMag, mMagnitudes[i]);
+        }
+
+        // An all-zero reading means the sensor is not delivering yet
+        return (maxMag > 0.0) && (maxMag - minMag <= MAGNITUDE_TOLERANCE);
+    }
+
+}
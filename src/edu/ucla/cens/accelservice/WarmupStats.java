@@ -0,0 +1,188 @@
+package edu.ucla.cens.accelservice;
+
+import edu.ucla.cens.systemlog.Log;
+
+import android.content.SharedPreferences;
+import android.hardware.SensorManager;
+
+
+/**
+ * Learns how long the accelerometer of this device takes to settle.
+ *
+ * For each sensor rate the service keeps a running mean and mean
+ * deviation of the measured warm-up latencies, the way TCP estimates
+ * its round-trip time. Once enough warm-ups were measured the
+ * adaptive warm-up gives up at mean + DEVIATION_FACTOR * deviation
+ * instead of at the configured warm-up length. The estimates are
+ * stored in SharedPreferences so they survive restarts.
+ *
+ * A warm-up that timed out only tells that the sensor took longer
+ * than the bound, so it is not measured. Like a TCP retransmission
+ * timeout under Karn's algorithm, the bound is doubled instead, up
+ * to MAX_BACKOFF times, until a warm-up settles again.
+ *
+ * Warm-ups are measured on the sensor thread, while save() writes
+ * to flash and runs on another thread, so the methods synchronize
+ * on the estimates. save() does not hold the lock while it writes.
+ */
+class WarmupStats
+{
+    /** TAG string used for logging */
+    private static final String TAG = "WarmupStats";
+
+    /** Weights of a new measurement in the mean and the deviation */
+    private static final double MEAN_GAIN = 0.125;
+    private static final double DEVIATION_GAIN = 0.25;
+
+    private static final double DEVIATION_FACTOR = 4.0;
+
+    /** Number of measurements before the learned bound is used */
+    private static final int MIN_COUNT = 10;
+
+    /** Shortest bound in milliseconds */
+    private static final long MIN_BOUND = 50;
+
+    /** Number of measurements between two saves */
+    private static final int SAVE_EVERY = 10;
+
+    /** Largest number of doublings of the bound after timeouts */
+    private static final int MAX_BACKOFF = 4;
+
+    private static final int[] RATES = {
+        SensorManager.SENSOR_DELAY_FASTEST,
+        SensorManager.SENSOR_DELAY_GAME,
+        SensorManager.SENSOR_DELAY_UI,
+        SensorManager.SENSOR_DELAY_NORMAL
+    };
+
+    private final SharedPreferences mPrefs;
+
+    private final int[] mCount = new int[RATES.length];
+    private final double[] mMean = new double[RATES.length];
+    private final double[] mDeviation = new double[RATES.length];
+
+    /** Number of doublings of the bound since the last settle */
+    private final int[] mBackoff = new int[RATES.length];
+
+    private int mUnsaved = 0;
+
+
+    /**
+     * @param   prefs       preferences the estimates are kept in
+     */
+    WarmupStats(SharedPreferences prefs)
+    {
+        mPrefs = prefs;
+
+        for (int i = 0; i < RATES.length; i++)
+        {
+            mCount[i] = prefs.getInt("count_" + RATES[i], 0);
+            mMean[i] = prefs.getFloat("mean_" + RATES[i], 0.0f);
+            mDeviation[i] = prefs.getFloat("dev_" + RATES[i], 0.0f);
+        }
+    }
+
+    /**
+     * Adds a warm-up that settled.
+     *
+     * @param   rate        sensor rate constant of the warm-up
+     * @param   latency     time until the samples were stable in 
+     *                      milliseconds
+     * @return              true once enough warm-ups were added since
+     *                      the last save that save() should be called
+     */
+    public synchronized boolean add(int rate, long latency)
+    {
+        int i = indexOf(rate);
+
+        mBackoff[i] = 0;
+
+        if (mCount[i] == 0)
+        {
+            mMean[i] = latency;
+            mDeviation[i] = latency / 2.0;
+        }
+        else
+        {
+            double error = latency - mMean[i];
+            mMean[i] += MEAN_GAIN * error;
+            mDeviation[i] += DEVIATION_GAIN
+                * (Math.abs(error) - mDeviation[i]);
+        }
+
+        if (mCount[i] < Integer.MAX_VALUE)
+            mCount[i]++;
+
+        return ++mUnsaved == SAVE_EVERY;
+    }
+
+    /**
+     * Notes a warm-up that ran out of time before the samples were
+     * stable, and doubles the bound.
+     *
+     * @param   rate        sensor rate constant of the warm-up
+     */
+    public synchronized void timedOut(int rate)
+    {
+        int i = indexOf(rate);
+
+        if ((mCount[i] >= MIN_COUNT) && (mBackoff[i] < MAX_BACKOFF))
+            mBackoff[i]++;
+    }
+
+    /**
+     * Returns how long a warm-up at the given rate should last at
+     * most.
+     *
+     * @param   rate        sensor rate constant of the warm-up
+     * @param   max         the configured warm-up length
+     * @return              the learned bound, never above max
+     */
+    public synchronized long bound(int rate, long max)
+    {
+        int i = indexOf(rate);
+
+        if (mCount[i] < MIN_COUNT)
+            return max;
+
+        long bound = (long) Math.ceil(mMean[i]
+                + DEVIATION_FACTOR * mDeviation[i]) << mBackoff[i];
+
+        return Math.min(max, Math.max(MIN_BOUND, bound));
+    }
+
+    /**
+     * Writes the estimates to the preferences. This blocks on flash,
+     * so it must not be called on the sensor thread.
+     */
+    public void save()
+    {
+        SharedPreferences.Editor editor = mPrefs.edit();
+
+        synchronized (this)
+        {
+            for (int i = 0; i < RATES.length; i++)
+            {
+                editor.putInt("count_" + RATES[i], mCount[i]);
+                editor.putFloat("mean_" + RATES[i], (float) mMean[i]);
+                editor.putFloat("dev_" + RATES[i], 
+                        (float) mDeviation[i]);
+            }
+
+            mUnsaved = 0;
+        }
+
+        if (!editor.commit())
+            Log.w(TAG, "Could not save the warm-up statistics");
+    }
+
+    private static int indexOf(int rate)
+    {
+        for (int i = 0; i < RATES.length; i++)
+            if (RATES[i] == rate)
+                return i;
+
+        return RATES.length - 1;
+    }
+
+}
@@ -0,0 +1,411 @@
+package edu.ucla.cens.accelservice;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Lossless compression of sample windows.
+ *
+ * The samples are written as one bit stream, after the time series
+ * encoding of Pelkonen et al., "Gorilla: A Fast, Scalable, In-Memory
+ * Time Series Database". A time-stamp is stored as the change of the
+ * delta to the previous sample, which is zero or small at a steady
+ * rate. A value is stored as the XOR with the previous value of the
+ * same channel. Close values share the sign, the exponent and the
+ * high mantissa bits, so only the few bits between the leading and
+ * the trailing zeros of the XOR are written.
+ *
+ * Bit stream of the samples, most significant bit first. Sample 0
+ * starts with its 64-bit time-stamp, every later sample with the
+ * delta of delta d of its time-stamp, zigzag-encoded as z:
+ *
+ *   '0'                     d is zero
+ *   '10'   16 bits of z
+ *   '110'  24 bits of z
+ *   '1110' 32 bits of z
+ *   '1111' 64 bits of z
+ *
+ * followed by the x, y, z and force values, each as its XOR v with
+ * the previous value of the channel, or with zero for sample 0:
+ *
+ *   '0'                     v is zero
+ *   '10'   the bits of v between the leading and trailing zeros of
+ *          the last value written with '11'
+ *   '11'   5 bits of leading zeros, 5 bits of length - 1 and the
+ *          length meaningful bits of v
+ *
+ * Time-stamp deltas are in nanoseconds and jitter by up to a few
+ * milliseconds, so the buckets are wider than the original ones.
+ *
+ * encode() prefixes the stream with a header of HEADER_SIZE bytes,
+ * in big-endian byte order:
+ *
+ *     0  int   MAGIC
+ *     4  int   VERSION
+ *     8  long  sequence number
+ *     16 int   rate
+ *     20 long  wall-clock time in milliseconds at sensorBase
+ *     28 long  sensorBase, sensor time in nanoseconds
+ *     36 int   number of samples
+ */
+public class WindowCodec
+{
+    public static final int MAGIC = 0x4143435a;
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 40;
+
+    private static final int CHANNELS = WindowFeatures.CHANNELS;
+
+
+    private WindowCodec()
+    {
+    }
+
+    /**
+     * Encodes a window with its header.
+     *
+     * @param   window      the window to encode
+     * @return              the encoded window
+     */
+    public static byte[] encode(AccelWindow window)
+    {
+        BitWriter out = new BitWriter(HEADER_SIZE + window.size() * 8);
+        writeSamples(window, out);
+
+        byte[] data = new byte[HEADER_SIZE + out.size()];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        writeHeader(buffer, window.getSequence(), window.getRate(),
+                window.getWallBase(), window.getSensorBase(),
+                window.size());
+        buffer.put(out.bytes(), 0, out.size());
+
+        return data;
+    }
+
+    /**
+     * Decodes a window written by encode().
+     *
+     * @param   data        the encoded window
+     * @return              the window
+     * @throws  IllegalArgumentException if the data is not an encoded
+     *          window
+     */
+    public static AccelWindow decode(byte[] data)
+    {
+        if (data.length < HEADER_SIZE)
+            throw new IllegalArgumentException("Window is too short");
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION))
+            throw new IllegalArgumentException("Not an encoded window");
+
+        int count = buffer.getInt(36);
+        if (count < 0)
+            throw new IllegalArgumentException("Bad sample count");
+
+        long[] time = new long[count];
+        float[] x = new float[count];
+        float[] y = new float[count];
+        float[] z = new float[count];
+        float[] force = new float[count];
+
+        readSamples(new BitReader(buffer, HEADER_SIZE,
+                    data.length - HEADER_SIZE), time, x, y, z, force);
+
+        return new AccelWindow(buffer.getLong(8), buffer.getInt(16),
+                buffer.getLong(20), buffer.getLong(28), time, x, y, z,
+                force);
+    }
+
+    /*
+     * Writes the header of encode() at the position of the buffer.
+     */
+    static void writeHeader(ByteBuffer out, long sequence, int rate,
+            long wallBase, long sensorBase, int count)
+    {
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putLong(sequence);
+        out.putInt(rate);
+        out.putLong(wallBase);
+        out.putLong(sensorBase);
+        out.putInt(count);
+    }
+
+    /**
+     * Appends the bit stream of the samples of a window.
+     *
+     * @param   window      the window to encode
+     * @param   out         receives the bits
+     */
+    static void writeSamples(AccelWindow window, BitWriter out)
+    {
+        int count = window.size();
+        long[] time = window.getTimeStamps();
+        float[][] values = {window.getX(), window.getY(), window.getZ(),
+            window.getForce()};
+
+        int[] previous = new int[CHANNELS];
+        int[] leading = new int[CHANNELS];
+        int[] trailing = new int[CHANNELS];
+        Arrays.fill(leading, -1);
+
+        long delta = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            if (i == 0)
+            {
+                out.write(time[0], 64);
+            }
+            else
+            {
+                long next = time[i] - time[i - 1];
+                long zigzag = ((next - delta) << 1)
+                    ^ ((next - delta) >> 63);
+                delta = next;
+
+                if (zigzag == 0)
+                    out.write(0, 1);
+                else if ((zigzag >>> 16) == 0)
+                    out.write((0x2L << 16) | zigzag, 2 + 16);
+                else if ((zigzag >>> 24) == 0)
+                    out.write((0x6L << 24) | zigzag, 3 + 24);
+                else if ((zigzag >>> 32) == 0)
+                    out.write((0xeL << 32) | zigzag, 4 + 32);
+                else
+                {
+                    out.write(0xf, 4);
+                    out.write(zigzag, 64);
+                }
+            }
+
+            for (int c = 0; c < CHANNELS; c++)
+            {
+                int bits = Float.floatToRawIntBits(values[c][i]);
+                int xor = bits ^ previous[c];
+                previous[c] = bits;
+
+                if (xor == 0)
+                {
+                    out.write(0, 1);
+                    continue;
+                }
+
+                int lead = Integer.numberOfLeadingZeros(xor);
+                int trail = Integer.numberOfTrailingZeros(xor);
+
+                if ((leading[c] >= 0) && (lead >= leading[c])
+                        && (trail >= trailing[c]))
+                {
+                    int length = 32 - leading[c] - trailing[c];
+
+                    out.write(0x2, 2);
+                    out.write(xor >>> trailing[c], length);
+                }
+                else
+                {
+                    int length = 32 - lead - trail;
+
+                    out.write((0x3 << 10) | (lead << 5) | (length - 1),
+                            2 + 5 + 5);
+                    out.write(xor >>> trail, length);
+
+                    leading[c] = lead;
+                    trailing[c] = trail;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the bit stream of the samples of a window into arrays of
+     * the number of samples.
+     *
+     * @throws  IllegalArgumentException if the stream ends early
+     */
+    static void readSamples(BitReader in, long[] time, float[] x,
+            float[] y, float[] z, float[] force)
+    {
+        float[][] values = {x, y, z, force};
+
+        int[] previous = new int[CHANNELS];
+        int[] leading = new int[CHANNELS];
+        int[] trailing = new int[CHANNELS];
+
+        long delta = 0;
+
+        for (int i = 0; i < time.length; i++)
+        {
+            if (i == 0)
+            {
+                time[0] = in.read(64);
+            }
+            else
+            {
+                long zigzag;
+
+                if (in.read(1) == 0)
+                    zigzag = 0;
+                else if (in.read(1) == 0)
+                    zigzag = in.read(16);
+                else if (in.read(1) == 0)
+                    zigzag = in.read(24);
+                else if (in.read(1) == 0)
+                    zigzag = in.read(32);
+                else
+                    zigzag = in.read(64);
+
+                delta += (zigzag >>> 1) ^ -(zigzag & 1);
+                time[i] = time[i - 1] + delta;
+            }
+
+            for (int c = 0; c < CHANNELS; c++)
+            {
+                if (in.read(1) != 0)
+                {
+                    if (in.read(1) != 0)
+                    {
+                        leading[c] = (int) in.read(5);
+                        trailing[c] = 32 - leading[c]
+                            - ((int) in.read(5) + 1);
+                    }
+
+                    int length = 32 - leading[c] - trailing[c];
+                    previous[c] ^= (int) in.read(length) << trailing[c];
+                }
+
+                values[c][i] = Float.intBitsToFloat(previous[c]);
+            }
+        }
+    }
+
+
+    /**
+     * Growable bit buffer, written most significant bit first. It is
+     * reused from window to window by calling reset().
+     */
+    static class BitWriter
+    {
+        private byte[] mBytes;
+
+        /** Number of bits written */
+        private int mBits = 0;
+
+
+        BitWriter(int capacity)
+        {
+            mBytes = new byte[Math.max(capacity, 16)];
+        }
+
+        void reset()
+        {
+            Arrays.fill(mBytes, 0, size(), (byte) 0);
+            mBits = 0;
+        }
+
+        /**
+         * Writes the lowest bits of a value.
+         *
+         * @param   value       holds the bits in its lowest bits
+         * @param   bits        number of bits, up to 64
+         */
+        void write(long value, int bits)
+        {
+            if (((mBits + bits + 7) >>> 3) > mBytes.length)
+            {
+                byte[] bytes = new byte[Math.max(mBytes.length * 2,
+                        ((mBits + bits + 7) >>> 3))];
+                System.arraycopy(mBytes, 0, bytes, 0, size());
+                mBytes = bytes;
+            }
+
+            while (bits > 0)
+            {
+                int free = 8 - (mBits & 7);
+                int n = Math.min(free, bits);
+                int chunk = (int) (value >>> (bits - n)) & ((1 << n) - 1);
+
+                mBytes[mBits >>> 3] |= chunk << (free - n);
+                mBits += n;
+                bits -= n;
+            }
+        }
+
+        /**
+         * Returns the number of bytes written, the last one padded
+         * with zero bits.
+         */
+        int size()
+        {
+            return (mBits + 7) >>> 3;
+        }
+
+        /**
+         * Returns the internal buffer, which holds size() bytes.
+         */
+        byte[] bytes()
+        {
+            return mBytes;
+        }
+    }
+
+
+    /**
+     * Reads the bits of a BitWriter from a part of a buffer.
+     */
+    static class BitReader
+    {
+        private final ByteBuffer mBuffer;
+        private final int mOffset;
+        private final int mLength;
+
+        /** Number of bits read */
+        private int mBits = 0;
+
+
+        /**
+         * @param   buffer      buffer holding the bits
+         * @param   offset      offset of the first byte
+         * @param   length      number of bytes
+         */
+        BitReader(ByteBuffer buffer, int offset, int length)
+        {
+            mBuffer = buffer;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        /**
+         * Reads the next bits as the lowest bits of a value.
+         *
+         * @param   bits        number of bits, up to 64
+         */
+        long read(int bits)
+        {
+            if (mBits + bits > mLength * 8L)
+                throw new IllegalArgumentException("Window is truncated");
+
+            long value = 0;
+
+            while (bits > 0)
+            {
+                int left = 8 - (mBits & 7);
+                int n = Math.min(left, bits);
+                int current = mBuffer.get(mOffset + (mBits >>> 3)) & 0xff;
+
+                value = (value << n) | ((current >>> (left - n))
+                        & ((1 << n) - 1));
+                mBits += n;
+                bits -= n;
+            }
+
+            return value;
+        }
+    }
+
+}
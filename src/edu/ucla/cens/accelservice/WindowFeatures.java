@@ -0,0 +1,188 @@
+package edu.ucla.cens.accelservice;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+
+/**
+ * Summary features of one reading window.
+ *
+ * The service computes the features while the samples arrive, so a
+ * client that only needs them does not have to fetch the raw window.
+ * Every feature is kept for the X, Y and Z axes and for the force
+ * magnitude. The values sit in one float array, indexed by channel
+ * and feature, so the whole vector is marshalled in a single array.
+ *
+ * A feature vector is immutable once it is created.
+ */
+public class WindowFeatures implements Parcelable
+{
+    /** Channels */
+    public static final int X = 0;
+    public static final int Y = 1;
+    public static final int Z = 2;
+    public static final int FORCE = 3;
+    static final int CHANNELS = 4;
+
+    /** Features of every channel */
+    static final int MEAN = 0;
+    static final int VARIANCE = 1;
+    static final int ENERGY = 2;
+    static final int MIN = 3;
+    static final int MAX = 4;
+    static final int ZERO_CROSSING_RATE = 5;
+    static final int PEAKS = 6;
+    static final int FEATURES = 7;
+
+    /** Sequence number of the window the features belong to */
+    private final long mSequence;
+
+    /** Wall-clock time of the first sample in milliseconds */
+    private final long mStartTime;
+
+    /** Number of samples the features were computed from */
+    private final int mCount;
+
+    /** Features of all channels, FEATURES values per channel */
+    private final float[] mValues;
+
+
+    public static final Parcelable.Creator<WindowFeatures> CREATOR
+        = new Parcelable.Creator<WindowFeatures>()
+    {
+        public WindowFeatures createFromParcel(Parcel in)
+        {
+            return new WindowFeatures(in);
+        }
+
+        public WindowFeatures[] newArray(int size)
+        {
+            return new WindowFeatures[size];
+        }
+    };
+
+
+    WindowFeatures(long sequence, long startTime, int count,
+            float[] values)
+    {
+        mSequence = sequence;
+        mStartTime = startTime;
+        mCount = count;
+        mValues = values;
+    }
+
+    private WindowFeatures(Parcel in)
+    {
+        mSequence = in.readLong();
+        mStartTime = in.readLong();
+        mCount = in.readInt();
+        mValues = in.createFloatArray();
+    }
+
+    public void writeToParcel(Parcel out, int flags)
+    {
+        out.writeLong(mSequence);
+        out.writeLong(mStartTime);
+        out.writeInt(mCount);
+        out.writeFloatArray(mValues);
+    }
+
+    public int describeContents()
+    {
+        return 0;
+    }
+
+    /**
+     * Returns the sequence number of the window the features belong
+     * to. It matches AccelWindow.getSequence() of that window.
+     */
+    public long getSequence()
+    {
+        return mSequence;
+    }
+
+    /**
+     * Returns the wall-clock time of the first sample in
+     * milliseconds.
+     */
+    public long getStartTime()
+    {
+        return mStartTime;
+    }
+
+    /**
+     * Returns the number of samples in the window.
+     */
+    public int getCount()
+    {
+        return mCount;
+    }
+
+    /**
+     * @param   channel     X, Y, Z or FORCE
+     * @return              mean of the channel
+     */
+    public float getMean(int channel)
+    {
+        return value(channel, MEAN);
+    }
+
+    /**
+     * @param   channel     X, Y, Z or FORCE
+     * @return              population variance of the channel
+     */
+    public float getVariance(int channel)
+    {
+        return value(channel, VARIANCE);
+    }
+
+    /**
+     * @param   channel     X, Y, Z or FORCE
+     * @return              mean of the squared values of the channel
+     */
+    public float getEnergy(int channel)
+    {
+        return value(channel, ENERGY);
+    }
+
+    public float getMin(int channel)
+    {
+        return value(channel, MIN);
+    }
+
+    public float getMax(int channel)
+    {
+        return value(channel, MAX);
+    }
+
+    /**
+     * Returns how often per second the channel crosses its mean.
+     * The crossings are counted against the running mean, so the
+     * first samples of a window may count a few extra crossings.
+     *
+     * @param   channel     X, Y, Z or FORCE
+     * @return              crossings per second
+     */
+    public float getZeroCrossingRate(int channel)
+    {
+        return value(channel, ZERO_CROSSING_RATE);
+    }
+
+    /**
+     * Returns the number of local maxima that are more than one
+     * standard deviation above the running mean.
+     *
+     * @param   channel     X, Y, Z or FORCE
+     * @return              number of peaks
+     */
+    public int getPeakCount(int channel)
+    {
+        return (int) value(channel, PEAKS);
+    }
+
+    private float value(int channel, int feature)
+    {
+        return mValues[channel * FEATURES + feature];
+    }
+
+}
@@ -0,0 +1,792 @@
+package edu.ucla.cens.accelservice;
+
+import edu.ucla.cens.systemlog.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ * Persistent history of the recorded windows.
+ *
+ * Windows are appended to segment files of a fixed size that are
+ * written through a memory mapping. A segment is named after the
+ * sequence number of its first window. When the tail segment is full
+ * a new one is started, and the oldest segments are deleted so that
+ * at most maxSegments are kept.
+ *
+ * Layout of a segment, in little-endian byte order:
+ *
+ *   header (SEGMENT_HEADER_SIZE bytes)
+ *     0  int   MAGIC
+ *     4  int   VERSION
+ *     8  int   segment size
+ *
+ *   records, one per window, back to back
+ *     0  int   record length, written last
+ *     4  int   checksum of the rest of the record
+ *     8  long  sequence number
+ *     16 long  wall-clock time in milliseconds at sensorBase
+ *     24 long  sensorBase, sensor time in nanoseconds
+ *     32 int   rate
+ *     36 int   number of samples
+ *     40 long  wall-clock time of the first sample in milliseconds
+ *     48 long  wall-clock time of the last sample in milliseconds
+ *     56 int   number of bytes of the samples
+ *     64 samples, encoded by WindowCodec.writeSamples(), padded
+ *        with zeros to a multiple of 4 bytes
+ *
+ *   a record length of zero after the last record
+ *
+ * The samples are stored without loss, with their time-stamps in
+ * nanoseconds. The codec takes a window of the usual rate down to a
+ * fraction of the 24 bytes per sample of the raw arrays, which saves
+ * more time in writing and paging than it costs to encode. The
+ * compression of every segment is logged when it is sealed.
+ *
+ * Every segment keeps a sparse index of its windows: the sequence
+ * number, the wall-clock start and end time and the file offset of
+ * every record, in the order they were written. The index of a
+ * sealed segment is built the first time the segment is read. Window
+ * times are assumed to grow with the sequence numbers, so a query
+ * binary-searches for the first segment and the first record, and
+ * then only reads the records it returns.
+ *
+ * A record only counts once its length is written, so a process
+ * that dies while appending leaves at most a torn record behind. On
+ * start the tail segment is scanned, and the first record with a bad
+ * length or checksum ends it. The next append overwrites it.
+ *
+ * The history is not thread-safe by itself: the service appends on a
+ * writer thread and reads on binder threads, so all the public
+ * methods are synchronized. The sensor thread never calls it. A query
+ * only finds its records under the lock, and reads and hands them
+ * over outside it, so a slow receiver does not hold up the appends.
+ * A record does not change once it is written, and a deleted segment
+ * stays mapped until it is no longer referenced.
+ */
+class WindowHistory
+{
+    /** TAG string used for logging */
+    private static final String TAG = "WindowHistory";
+
+    static final int MAGIC = 0x41434348;
+    static final int VERSION = 2;
+
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 64;
+
+    /** Bytes per sample of the raw time-stamp and value arrays */
+    private static final int RAW_SAMPLE_SIZE = 8 + WindowFeatures.CHANNELS * 4;
+
+    private static final int OFF_MAGIC = 0;
+    private static final int OFF_VERSION = 4;
+    private static final int OFF_SEGMENT_SIZE = 8;
+
+    private static final int OFF_LENGTH = 0;
+    private static final int OFF_CHECKSUM = 4;
+    private static final int OFF_SEQUENCE = 8;
+    private static final int OFF_WALL_BASE = 16;
+    private static final int OFF_SENSOR_BASE = 24;
+    private static final int OFF_RATE = 32;
+    private static final int OFF_COUNT = 36;
+    private static final int OFF_START_TIME = 40;
+    private static final int OFF_END_TIME = 48;
+    private static final int OFF_PAYLOAD = 56;
+
+    private static final String SUFFIX = ".seg";
+
+    /** Initial number of index entries of a segment */
+    private static final int INDEX_CAPACITY = 64;
+
+    /** Number of appends between two flushes of the tail */
+    private static final int FORCE_EVERY = 16;
+
+    private final File mDir;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+
+    /** Segments, oldest first. The last one is written to. */
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+
+    /** Sequence number of the latest stored window */
+    private long mLastSequence = 0;
+
+    private int mUnforced = 0;
+
+    /** Encodes the samples of the appended windows */
+    private final WindowCodec.BitWriter mWriter
+        = new WindowCodec.BitWriter(4096);
+
+    /** Compression of the tail segment since it was started */
+    private long mRawBytes = 0;
+    private long mStoredBytes = 0;
+    private long mEncodeTime = 0;
+    private int mAppended = 0;
+
+
+    /**
+     * Receives the windows found by a query.
+     */
+    interface Receiver
+    {
+        /**
+         * @param   window      a window or part of a window in the
+         *                      range
+         * @return              false to end the query
+         */
+        boolean onWindow(AccelWindow window);
+    }
+
+
+    /**
+     * Opens the history in the given directory and recovers its
+     * tail segment.
+     *
+     * @param   dir         directory of the segment files
+     * @param   segmentSize size of one segment file in bytes
+     * @param   maxSegments number of segments kept
+     */
+    WindowHistory(File dir, int segmentSize, int maxSegments)
+        throws IOException
+    {
+        mDir = dir;
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+
+        String[] names = dir.list();
+        if (names == null)
+            throw new IOException("Cannot list " + dir);
+
+        // Zero-padded names sort by sequence number
+        Arrays.sort(names);
+
+        for (String name : names)
+        {
+            if (!name.endsWith(SUFFIX))
+                continue;
+
+            try
+            {
+                long first = Long.parseLong(name.substring(0,
+                            name.length() - SUFFIX.length()));
+                mSegments.add(new Segment(new File(dir, name), first));
+            }
+            catch (NumberFormatException e)
+            {
+                Log.w(TAG, "Ignoring " + name);
+            }
+        }
+
+        if (!mSegments.isEmpty())
+        {
+            Segment tail = mSegments.get(mSegments.size() - 1);
+            tail.map(true);
+
+            // A segment that was cut off before its header was
+            // written holds nothing
+            if (!tail.scan())
+                tail.create();
+            mLastSequence = tail.mLastSequence;
+
+            // A torn record is overwritten by the next append
+            tail.mBuffer.putInt(tail.mEnd + OFF_LENGTH, 0);
+
+            Log.i(TAG, "Recovered " + mSegments.size()
+                    + " segments up to window " + mLastSequence);
+        }
+
+        evict();
+    }
+
+    /**
+     * Returns the sequence number of the latest stored window, or 0
+     * if the history is empty.
+     */
+    public synchronized long getLastSequence()
+    {
+        return mLastSequence;
+    }
+
+    /**
+     * Appends a window.
+     *
+     * @param   window      the window to store
+     */
+    public synchronized void append(AccelWindow window)
+        throws IOException
+    {
+        long start = System.nanoTime();
+
+        mWriter.reset();
+        WindowCodec.writeSamples(window, mWriter);
+
+        long encodeTime = System.nanoTime() - start;
+        int length = align(RECORD_HEADER_SIZE + mWriter.size());
+
+        // Room for the record and the zero length after it
+        if (length + 4 > mSegmentSize - SEGMENT_HEADER_SIZE)
+        {
+            Log.w(TAG, "Window " + window.getSequence()
+                    + " does not fit in a segment");
+            return;
+        }
+
+        Segment tail = mSegments.isEmpty() ? null
+            : mSegments.get(mSegments.size() - 1);
+
+        if ((tail == null) || (tail.mEnd + length + 4 > mSegmentSize))
+            tail = rotate(window.getSequence());
+
+        tail.write(window, length, mWriter);
+        mLastSequence = window.getSequence();
+
+        mRawBytes += window.size() * RAW_SAMPLE_SIZE;
+        mStoredBytes += length;
+        mEncodeTime += encodeTime;
+        mAppended++;
+
+        if (++mUnforced >= FORCE_EVERY)
+        {
+            tail.mBuffer.force();
+            mUnforced = 0;
+        }
+    }
+
+    /**
+     * Returns a stored window.
+     *
+     * @param   sequence    sequence number of the window
+     * @return              the window, or null if it is not stored
+     */
+    public synchronized AccelWindow get(long sequence)
+        throws IOException
+    {
+        Segment segment = segmentOf(sequence);
+
+        if (segment == null)
+            return null;
+
+        int record = search(segment.mSequences, segment.mRecords,
+                sequence);
+
+        if ((record == segment.mRecords)
+                || (segment.mSequences[record] != sequence))
+            return null;
+
+        return segment.read(segment.mOffsets[record]);
+    }
+
+    /**
+     * Hands the stored samples taken between two wall-clock times to
+     * the receiver, one window at a time, oldest first. Windows that
+     * only partly overlap the range are cut to it. At most maxWindows
+     * windows are handed over, so that a long range is fetched in 
+     * pieces.
+     *
+     * @param   startTime   first wall-clock time in milliseconds
+     * @param   endTime     last wall-clock time in milliseconds
+     * @param   maxWindows  largest number of windows handed over
+     * @param   receiver    receives the windows
+     * @return              number of windows handed over
+     */
+    public int query(long startTime, long endTime, int maxWindows,
+            Receiver receiver) throws IOException
+    {
+        Segment[] segments = new Segment[maxWindows];
+        int[] offsets = new int[maxWindows];
+        int found = find(startTime, endTime, segments, offsets);
+
+        int count = 0;
+
+        for (int i = 0; i < found; i++)
+        {
+            AccelWindow window = segments[i].read(offsets[i]).slice(
+                    startTime, endTime);
+
+            if (window.size() == 0)
+                continue;
+
+            count++;
+            if (!receiver.onWindow(window))
+                break;
+        }
+
+        return count;
+    }
+
+    /*
+     * Finds the records of the windows that overlap a range, up to
+     * the length of the arrays. Returns the number of records found.
+     */
+    private synchronized int find(long startTime, long endTime,
+            Segment[] segments, int[] offsets) throws IOException
+    {
+        if ((startTime > endTime) || mSegments.isEmpty())
+            return 0;
+
+        // Last segment that starts at or before startTime
+        int low = 0, high = mSegments.size() - 1;
+        while (low < high)
+        {
+            int mid = (low + high + 1) >>> 1;
+
+            if (mSegments.get(mid).firstStart() <= startTime)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+
+        int count = 0;
+
+        for (int i = low; i < mSegments.size(); i++)
+        {
+            Segment segment = mSegments.get(i);
+            segment.index();
+
+            for (int record = search(segment.mEnds, segment.mRecords,
+                        startTime);
+                    record < segment.mRecords; record++)
+            {
+                if ((segment.mStarts[record] > endTime)
+                        || (count == offsets.length))
+                    return count;
+
+                segments[count] = segment;
+                offsets[count] = segment.mOffsets[record];
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns a stored window encoded by WindowCodec, without
+     * decoding its samples.
+     *
+     * @param   sequence    sequence number of the window
+     * @return              the encoded window, or null if it is not
+     *                      stored
+     */
+    public synchronized byte[] getEncoded(long sequence)
+        throws IOException
+    {
+        Segment segment = segmentOf(sequence);
+
+        if (segment == null)
+            return null;
+
+        int record = search(segment.mSequences, segment.mRecords,
+                sequence);
+
+        if ((record == segment.mRecords)
+                || (segment.mSequences[record] != sequence))
+            return null;
+
+        return segment.readEncoded(segment.mOffsets[record]);
+    }
+
+    /**
+     * Writes the tail segment out.
+     */
+    public synchronized void close()
+    {
+        if (!mSegments.isEmpty())
+            mSegments.get(mSegments.size() - 1).mBuffer.force();
+    }
+
+    /*
+     * Returns the segment that would hold the window, mapped and
+     * scanned, or null if the window is older than the history.
+     */
+    private Segment segmentOf(long sequence) throws IOException
+    {
+        for (int i = mSegments.size() - 1; i >= 0; i--)
+        {
+            Segment segment = mSegments.get(i);
+
+            if (segment.mFirst <= sequence)
+            {
+                segment.index();
+                return segment;
+            }
+        }
+
+        return null;
+    }
+
+    /*
+     * Seals the tail and starts a new segment.
+     */
+    private Segment rotate(long first) throws IOException
+    {
+        if (!mSegments.isEmpty())
+            mSegments.get(mSegments.size() - 1).mBuffer.force();
+
+        if (mAppended > 0)
+        {
+            Log.i(TAG, "Stored " + mAppended + " windows in "
+                    + mStoredBytes + " bytes, "
+                    + (mStoredBytes * 100 / Math.max(1, mRawBytes))
+                    + "% of raw size, encoded in "
+                    + (mEncodeTime / 1000 / mAppended) + " us per window");
+
+            mRawBytes = mStoredBytes = mEncodeTime = 0;
+            mAppended = 0;
+        }
+
+        Segment segment = new Segment(new File(mDir,
+                    String.format("%020d", first) + SUFFIX), first);
+        segment.create();
+        mSegments.add(segment);
+        mUnforced = 0;
+
+        evict();
+
+        return segment;
+    }
+
+    private static int align(int length)
+    {
+        return (length + 3) & ~3;
+    }
+
+    /*
+     * Returns the index of the first of count sorted values that is
+     * at least value, or count if there is none.
+     */
+    private static int search(long[] values, int count, long value)
+    {
+        int low = 0, high = count;
+
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if (values[mid] < value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        return low;
+    }
+
+    private void evict()
+    {
+        while (mSegments.size() > mMaxSegments)
+        {
+            Segment oldest = mSegments.remove(0);
+
+            Log.i(TAG, "Deleting " + oldest.mFile.getName());
+            if (!oldest.mFile.delete())
+                Log.w(TAG, "Could not delete " + oldest.mFile);
+        }
+    }
+
+
+    /**
+     * One segment file. Sealed segments are only mapped when they
+     * are first read.
+     */
+    private class Segment
+    {
+        final File mFile;
+
+        /** Sequence number of the first window */
+        final long mFirst;
+
+        MappedByteBuffer mBuffer;
+
+        /** Offset after the last valid record */
+        int mEnd = SEGMENT_HEADER_SIZE;
+
+        long mLastSequence;
+
+        /** Index of the valid records, mRecords entries */
+        long[] mSequences = new long[INDEX_CAPACITY];
+        long[] mStarts = new long[INDEX_CAPACITY];
+        long[] mEnds = new long[INDEX_CAPACITY];
+        int[] mOffsets = new int[INDEX_CAPACITY];
+        int mRecords = 0;
+
+        /** Set once the index covers all the valid records */
+        boolean mIndexed = false;
+
+
+        Segment(File file, long first)
+        {
+            mFile = file;
+            mFirst = first;
+            mLastSequence = first - 1;
+        }
+
+        void create() throws IOException
+        {
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try
+            {
+                raf.setLength(0);
+                raf.setLength(mSegmentSize);
+                mBuffer = raf.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+            }
+            finally
+            {
+                // The mapping stays valid after the channel is closed
+                raf.close();
+            }
+
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            mEnd = SEGMENT_HEADER_SIZE;
+            mRecords = 0;
+            mIndexed = true;
+
+            mBuffer.putInt(OFF_VERSION, VERSION);
+            mBuffer.putInt(OFF_SEGMENT_SIZE, mSegmentSize);
+            mBuffer.putInt(OFF_MAGIC, MAGIC);
+        }
+
+        void map(boolean writable) throws IOException
+        {
+            RandomAccessFile raf = new RandomAccessFile(mFile,
+                    writable ? "rw" : "r");
+            try
+            {
+                long size = Math.min(raf.length(), mSegmentSize);
+                mBuffer = raf.getChannel().map(writable
+                        ? FileChannel.MapMode.READ_WRITE
+                        : FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            finally
+            {
+                raf.close();
+            }
+
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /*
+         * Finds the end of the valid records. Returns false if the
+         * segment has no valid header.
+         */
+        boolean scan()
+        {
+            mEnd = SEGMENT_HEADER_SIZE;
+            mRecords = 0;
+            mIndexed = true;
+
+            if ((mBuffer.capacity() < mSegmentSize)
+                    || (mBuffer.getInt(OFF_MAGIC) != MAGIC)
+                    || (mBuffer.getInt(OFF_VERSION) != VERSION))
+            {
+                Log.w(TAG, mFile.getName() + " has no valid header");
+                return false;
+            }
+
+            while (mEnd + 4 <= mBuffer.capacity())
+            {
+                int length = mBuffer.getInt(mEnd + OFF_LENGTH);
+
+                if (length == 0)
+                    break;
+
+                if (!isValid(mEnd, length))
+                {
+                    Log.w(TAG, "Torn record at " + mEnd + " in "
+                            + mFile.getName());
+                    break;
+                }
+
+                mLastSequence = mBuffer.getLong(mEnd + OFF_SEQUENCE);
+                add(mEnd);
+                mEnd += length;
+            }
+
+            return true;
+        }
+
+        private boolean isValid(int offset, int length)
+        {
+            if ((length < RECORD_HEADER_SIZE)
+                    || (offset + length > mBuffer.capacity())
+                    || (mBuffer.getInt(offset + OFF_COUNT) < 0))
+                return false;
+
+            int payload = mBuffer.getInt(offset + OFF_PAYLOAD);
+            if ((payload < 0)
+                    || (length != align(RECORD_HEADER_SIZE + payload)))
+                return false;
+
+            if (mBuffer.getLong(offset + OFF_SEQUENCE) <= mLastSequence)
+                return false;
+
+            return checksum(offset, length)
+                == mBuffer.getInt(offset + OFF_CHECKSUM);
+        }
+
+        private int checksum(int offset, int length)
+        {
+            int hash = 17;
+
+            for (int p = offset + OFF_SEQUENCE; p < offset + length; p += 4)
+                hash = hash * 31 + mBuffer.getInt(p);
+
+            return hash;
+        }
+
+        void write(AccelWindow window, int length,
+                WindowCodec.BitWriter samples)
+        {
+            int offset = mEnd;
+            int count = window.size();
+            int payload = samples.size();
+
+            mBuffer.putLong(offset + OFF_SEQUENCE, window.getSequence());
+            mBuffer.putLong(offset + OFF_WALL_BASE, window.getWallBase());
+            mBuffer.putLong(offset + OFF_SENSOR_BASE,
+                    window.getSensorBase());
+            mBuffer.putInt(offset + OFF_RATE, window.getRate());
+            mBuffer.putInt(offset + OFF_COUNT, count);
+            mBuffer.putLong(offset + OFF_START_TIME, (count > 0)
+                    ? window.getStartTime() : window.getWallBase());
+            mBuffer.putLong(offset + OFF_END_TIME, (count > 0)
+                    ? window.getEndTime() : window.getWallBase());
+            mBuffer.putInt(offset + OFF_PAYLOAD, payload);
+
+            ByteBuffer body = mBuffer.duplicate();
+            body.position(offset + RECORD_HEADER_SIZE);
+            body.put(samples.bytes(), 0, payload);
+            for (int p = RECORD_HEADER_SIZE + payload; p < length; p++)
+                body.put((byte) 0);
+
+            mBuffer.putInt(offset + OFF_CHECKSUM, checksum(offset, length));
+
+            // Ends the segment after this record before the record
+            // becomes valid
+            mBuffer.putInt(offset + length + OFF_LENGTH, 0);
+            mBuffer.putInt(offset + OFF_LENGTH, length);
+
+            add(offset);
+            mEnd = offset + length;
+            mLastSequence = window.getSequence();
+        }
+
+        /*
+         * Maps the segment and builds its index if not done yet.
+         */
+        void index() throws IOException
+        {
+            if (mBuffer == null)
+                map(false);
+            if (!mIndexed)
+                scan();
+        }
+
+        /*
+         * Returns the start time of the first window, read from its
+         * header without building the index.
+         */
+        long firstStart() throws IOException
+        {
+            if (mIndexed)
+                return (mRecords > 0) ? mStarts[0] : Long.MAX_VALUE;
+
+            if (mBuffer == null)
+                map(false);
+
+            if ((mBuffer.capacity()
+                        < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE)
+                    || (mBuffer.getInt(OFF_VERSION) != VERSION)
+                    || (mBuffer.getInt(SEGMENT_HEADER_SIZE) == 0))
+                return Long.MAX_VALUE;
+
+            return mBuffer.getLong(SEGMENT_HEADER_SIZE + OFF_START_TIME);
+        }
+
+        private void add(int offset)
+        {
+            if (mRecords == mOffsets.length)
+            {
+                int capacity = mRecords * 2;
+                mSequences = grow(mSequences, capacity);
+                mStarts = grow(mStarts, capacity);
+                mEnds = grow(mEnds, capacity);
+
+                int[] offsets = new int[capacity];
+                System.arraycopy(mOffsets, 0, offsets, 0, mRecords);
+                mOffsets = offsets;
+            }
+
+            mSequences[mRecords] = mBuffer.getLong(offset + OFF_SEQUENCE);
+            mStarts[mRecords] = mBuffer.getLong(offset + OFF_START_TIME);
+            mEnds[mRecords] = mBuffer.getLong(offset + OFF_END_TIME);
+            mOffsets[mRecords] = offset;
+            mRecords++;
+        }
+
+        private long[] grow(long[] values, int capacity)
+        {
+            long[] copy = new long[capacity];
+            System.arraycopy(values, 0, copy, 0, mRecords);
+            return copy;
+        }
+
+        AccelWindow read(int offset)
+        {
+            int count = mBuffer.getInt(offset + OFF_COUNT);
+
+            long[] time = new long[count];
+            float[] x = new float[count];
+            float[] y = new float[count];
+            float[] z = new float[count];
+            float[] force = new float[count];
+
+            WindowCodec.readSamples(new WindowCodec.BitReader(mBuffer,
+                        offset + RECORD_HEADER_SIZE,
+                        mBuffer.getInt(offset + OFF_PAYLOAD)),
+                    time, x, y, z, force);
+
+            return new AccelWindow(
+                    mBuffer.getLong(offset + OFF_SEQUENCE),
+                    mBuffer.getInt(offset + OFF_RATE),
+                    mBuffer.getLong(offset + OFF_WALL_BASE),
+                    mBuffer.getLong(offset + OFF_SENSOR_BASE),
+                    time, x, y, z, force);
+        }
+
+        /*
+         * Copies a record into the form of WindowCodec.encode().
+         */
+        byte[] readEncoded(int offset)
+        {
+            int payload = mBuffer.getInt(offset + OFF_PAYLOAD);
+            byte[] data = new byte[WindowCodec.HEADER_SIZE + payload];
+
+            WindowCodec.writeHeader(ByteBuffer.wrap(data),
+                    mBuffer.getLong(offset + OFF_SEQUENCE),
+                    mBuffer.getInt(offset + OFF_RATE),
+                    mBuffer.getLong(offset + OFF_WALL_BASE),
+                    mBuffer.getLong(offset + OFF_SENSOR_BASE),
+                    mBuffer.getInt(offset + OFF_COUNT));
+
+            ByteBuffer body = mBuffer.duplicate();
+            body.position(offset + RECORD_HEADER_SIZE);
+            body.get(data, WindowCodec.HEADER_SIZE, payload);
+
+            return data;
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package edu.ucla.cens.accelservice;
+
+
+/**
+ * Bounded queue handing complete windows from the sensor thread to
+ * the publishing thread.
+ *
+ * The queue has exactly one producer and one consumer and needs no
+ * locks. Each side only writes its own index. The volatile write of
+ * the index publishes the slot to the other side.
+ */
+class WindowQueue
+{
+    private final AccelWindow[] mItems;
+    private final int mMask;
+
+    /** Index of the next window to take, written by the consumer */
+    private volatile long mHead = 0;
+
+    /** Index of the next free slot, written by the producer */
+    private volatile long mTail = 0;
+
+
+    /**
+     * @param   capacity    number of windows the queue can hold,
+     *                      rounded up to a power of two
+     */
+    WindowQueue(int capacity)
+    {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+
+        mItems = new AccelWindow[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Adds a window. Called only by the producer.
+     *
+     * @param   window      the window to add
+     * @return              false if the queue is full
+     */
+    public boolean offer(AccelWindow window)
+    {
+        long tail = mTail;
+
+        if (tail - mHead == mItems.length)
+            return false;
+
+        mItems[(int) (tail & mMask)] = window;
+        mTail = tail + 1;
+
+        return true;
+    }
+
+    /**
+     * Takes the oldest window. Called only by the consumer.
+     *
+     * @return              the oldest window, or null if the queue
+     *                      is empty
+     */
+    public AccelWindow poll()
+    {
+        long head = mHead;
+
+        if (head == mTail)
+            return null;
+
+        int index = (int) (head & mMask);
+        AccelWindow window = mItems[index];
+        mItems[index] = null;
+        mHead = head + 1;
+
+        return window;
+    }
+
+}
@@ -0,0 +1,172 @@
+package edu.ucla.cens.accelservice;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+
+/**
+ * Frequency content of one reading window.
+ *
+ * The spectrum holds the power of every FFT bin, averaged over the
+ * overlapping segments of the window. The band powers are the
+ * Goertzel filters of the frequencies the clients asked for, taken
+ * over the whole window. Both are kept for the X, Y and Z axes and
+ * for the force magnitude, indexed with the WindowFeatures channels.
+ * The mean of every channel is removed first, and every power is the
+ * squared amplitude of a sine at that frequency, in the units of the
+ * channel.
+ *
+ * A spectrum is immutable once it is created.
+ */
+public class WindowSpectrum implements Parcelable
+{
+    /** Sequence number of the window the spectrum belongs to */
+    private final long mSequence;
+
+    /** Measured sample rate of the window in Hz */
+    private final float mSampleRate;
+
+    /** Number of samples per FFT segment, zero if none fit */
+    private final int mFftSize;
+
+    /** Power of every bin, getBinCount() values per channel */
+    private final float[] mSpectrum;
+
+    /** Frequencies of the Goertzel filters in Hz */
+    private final float[] mFrequencies;
+
+    /** Power at every filter frequency, by channel */
+    private final float[] mBandPower;
+
+
+    public static final Parcelable.Creator<WindowSpectrum> CREATOR
+        = new Parcelable.Creator<WindowSpectrum>()
+    {
+        public WindowSpectrum createFromParcel(Parcel in)
+        {
+            return new WindowSpectrum(in);
+        }
+
+        public WindowSpectrum[] newArray(int size)
+        {
+            return new WindowSpectrum[size];
+        }
+    };
+
+
+    WindowSpectrum(long sequence, float sampleRate, int fftSize,
+            float[] spectrum, float[] frequencies, float[] bandPower)
+    {
+        mSequence = sequence;
+        mSampleRate = sampleRate;
+        mFftSize = fftSize;
+        mSpectrum = spectrum;
+        mFrequencies = frequencies;
+        mBandPower = bandPower;
+    }
+
+    private WindowSpectrum(Parcel in)
+    {
+        mSequence = in.readLong();
+        mSampleRate = in.readFloat();
+        mFftSize = in.readInt();
+        mSpectrum = in.createFloatArray();
+        mFrequencies = in.createFloatArray();
+        mBandPower = in.createFloatArray();
+    }
+
+    public void writeToParcel(Parcel out, int flags)
+    {
+        out.writeLong(mSequence);
+        out.writeFloat(mSampleRate);
+        out.writeInt(mFftSize);
+        out.writeFloatArray(mSpectrum);
+        out.writeFloatArray(mFrequencies);
+        out.writeFloatArray(mBandPower);
+    }
+
+    public int describeContents()
+    {
+        return 0;
+    }
+
+    /**
+     * Returns the sequence number of the window the spectrum
+     * belongs to.
+     */
+    public long getSequence()
+    {
+        return mSequence;
+    }
+
+    /**
+     * Returns the sample rate measured from the time-stamps of the
+     * window, in Hz.
+     */
+    public float getSampleRate()
+    {
+        return mSampleRate;
+    }
+
+    public int getFftSize()
+    {
+        return mFftSize;
+    }
+
+    /**
+     * Returns the number of bins per channel, from 0 Hz up to half
+     * the sample rate.
+     */
+    public int getBinCount()
+    {
+        return (mFftSize > 0) ? mFftSize / 2 + 1 : 0;
+    }
+
+    /**
+     * @param   bin         index of the bin
+     * @return              center frequency of the bin in Hz
+     */
+    public float getBinFrequency(int bin)
+    {
+        return bin * mSampleRate / mFftSize;
+    }
+
+    /**
+     * @param   channel     WindowFeatures.X, Y, Z or FORCE
+     * @param   bin         index of the bin
+     * @return              power of the bin
+     */
+    public float getPower(int channel, int bin)
+    {
+        return mSpectrum[channel * getBinCount() + bin];
+    }
+
+    /**
+     * Returns the number of Goertzel filters.
+     */
+    public int getBandCount()
+    {
+        return mFrequencies.length;
+    }
+
+    /**
+     * @param   band        index of the filter
+     * @return              frequency of the filter in Hz
+     */
+    public float getBandFrequency(int band)
+    {
+        return mFrequencies[band];
+    }
+
+    /**
+     * @param   channel     WindowFeatures.X, Y, Z or FORCE
+     * @param   band        index of the filter
+     * @return              power at the frequency of the filter,
+     *                      zero above half the sample rate
+     */
+    public float getBandPower(int channel, int band)
+    {
+        return mBandPower[channel * mFrequencies.length + band];
+    }
+
+}
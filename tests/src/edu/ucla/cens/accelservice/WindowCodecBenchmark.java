@@ -0,0 +1,158 @@
+package edu.ucla.cens.accelservice;
+
+import android.os.Parcel;
+import android.util.Log;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Size and speed of a window encoded by WindowCodec against the same
+ * window in a Parcel.
+ *
+ * The windows are synthetic: 50 Hz samples with a jitter of 0.3 ms,
+ * the values in the 0.038 m/s^2 steps of a typical accelerometer,
+ * either lying still or walking. For each size and kind the bytes
+ * and the microseconds per call of encode, decode, parcel (write
+ * and marshall) and unparcel (unmarshall and read) are logged under
+ * the tag WindowCodecBenchmark. Run it alone with
+ *
+ *   adb shell am instrument -w -e class \
+ *       edu.ucla.cens.accelservice.WindowCodecBenchmark \
+ *       edu.ucla.cens.accelservice.tests/android.test.InstrumentationTestRunner
+ */
+public class WindowCodecBenchmark extends TestCase
+{
+    private static final String TAG = "WindowCodecBenchmark";
+
+    /** Window sizes, 1 s to 10 s at 50 Hz */
+    private static final int[] COUNTS = {50, 200, 500};
+
+    /** Calls timed per operation, after as many to warm up */
+    private static final int CALLS = 200;
+
+    /** Nominal sample interval and its jitter in nanoseconds */
+    private static final long INTERVAL = 20000000L;
+    private static final double JITTER = 300000.0;
+
+    /** Resolution of the values in m/s^2 */
+    private static final double RESOLUTION = 0.0383;
+
+
+    public void testBenchmark()
+    {
+        Random random = new Random(1);
+
+        Log.i(TAG, "samples kind    codec parcel  encode  decode"
+                + "  parcel  unparcel (bytes, us)");
+
+        for (int count : COUNTS)
+        {
+            for (int walking = 0; walking < 2; walking++)
+            {
+                AccelWindow window = synthetic(count, 123456789000L,
+                        random, walking != 0);
+                Log.i(TAG, run(window, (walking != 0) ? "walk" : "still"));
+            }
+        }
+    }
+
+    /*
+     * Times the four operations on a window and returns a line of
+     * the report.
+     */
+    private static String run(AccelWindow window, String kind)
+    {
+        byte[] data = WindowCodec.encode(window);
+
+        Parcel parcel = Parcel.obtain();
+        window.writeToParcel(parcel, 0);
+        byte[] marshalled = parcel.marshall();
+        parcel.recycle();
+
+        double[] micros = new double[4];
+
+        for (int round = 0; round < 2; round++)
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++)
+                data = WindowCodec.encode(window);
+            micros[0] = (System.nanoTime() - start) / 1000.0 / CALLS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++)
+                WindowCodec.decode(data);
+            micros[1] = (System.nanoTime() - start) / 1000.0 / CALLS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++)
+            {
+                parcel = Parcel.obtain();
+                window.writeToParcel(parcel, 0);
+                marshalled = parcel.marshall();
+                parcel.recycle();
+            }
+            micros[2] = (System.nanoTime() - start) / 1000.0 / CALLS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++)
+            {
+                parcel = Parcel.obtain();
+                parcel.unmarshall(marshalled, 0, marshalled.length);
+                parcel.setDataPosition(0);
+                AccelWindow.CREATOR.createFromParcel(parcel);
+                parcel.recycle();
+            }
+            micros[3] = (System.nanoTime() - start) / 1000.0 / CALLS;
+        }
+
+        return String.format("%7d %-5s %7d %6d %7.1f %7.1f %7.1f %9.1f",
+                window.size(), kind, data.length, marshalled.length,
+                micros[0], micros[1], micros[2], micros[3]);
+    }
+
+    /**
+     * Makes a window like a recorded one.
+     *
+     * @param   count       number of samples
+     * @param   sensorBase  sensor time before the first sample
+     * @param   random      source of the noise
+     * @param   walking     whether the force swings with steps
+     * @return              the window
+     */
+    static AccelWindow synthetic(int count, long sensorBase,
+            Random random, boolean walking)
+    {
+        long[] time = new long[count];
+        float[] x = new float[count];
+        float[] y = new float[count];
+        float[] z = new float[count];
+        float[] force = new float[count];
+
+        long now = sensorBase;
+
+        for (int i = 0; i < count; i++)
+        {
+            now += INTERVAL + (long) (random.nextGaussian() * JITTER);
+            time[i] = now;
+
+            double swing = walking ? 3.0 * Math.sin(i * 0.6) : 0.0;
+
+            x[i] = step(0.3 + swing * 0.3 + random.nextGaussian() * 0.05);
+            y[i] = step(swing + random.nextGaussian() * 0.05);
+            z[i] = step(9.8 + swing + random.nextGaussian() * 0.05);
+            force[i] = (float) (Math.sqrt(x[i] * x[i] + y[i] * y[i]
+                        + z[i] * z[i]) / 9.80665);
+        }
+
+        return new AccelWindow(1, 1, sensorBase / 1000000L, sensorBase,
+                time, x, y, z, force);
+    }
+
+    private static float step(double value)
+    {
+        return (float) (Math.round(value / RESOLUTION) * RESOLUTION);
+    }
+}
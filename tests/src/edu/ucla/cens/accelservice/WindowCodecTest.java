@@ -0,0 +1,207 @@
+package edu.ucla.cens.accelservice;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Round trips of WindowCodec.
+ *
+ * Every case encodes a window, decodes it and compares the header
+ * and the raw bits of every value, so that NaN payloads and the sign
+ * of zero count as well.
+ */
+public class WindowCodecTest extends TestCase
+{
+    private static final long SENSOR_BASE = 123456789000L;
+
+
+    public void testEmptyWindow()
+    {
+        AccelWindow window = window(new long[0], new float[0]);
+        byte[] data = WindowCodec.encode(window);
+
+        assertEquals(WindowCodec.HEADER_SIZE, data.length);
+        assertSame(window, WindowCodec.decode(data));
+    }
+
+    public void testOneSample()
+    {
+        assertRoundTrip(window(new long[] {SENSOR_BASE},
+                    new float[] {9.80665f}));
+        assertRoundTrip(window(new long[] {Long.MIN_VALUE},
+                    new float[] {0.0f}));
+    }
+
+    public void testSpecialValues()
+    {
+        float[] values = {Float.NaN, Float.intBitsToFloat(0x7fc00001),
+            Float.intBitsToFloat(0xffffffff), 0.0f, -0.0f, 0.0f,
+            Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+            Float.MIN_VALUE, -Float.MIN_VALUE, Float.MAX_VALUE,
+            -Float.MAX_VALUE, Float.NaN, Float.NaN};
+
+        assertRoundTrip(window(steadyTime(values.length), values));
+    }
+
+    public void testFullWidthXor()
+    {
+        // The XOR of 0 and 0x80000001 has no leading or trailing
+        // zeros, so its meaningful bits take all 32 bits, and the
+        // following values reuse that width
+        float[] values = new float[8];
+        for (int i = 0; i < values.length; i++)
+            values[i] = Float.intBitsToFloat(((i & 1) != 0)
+                    ? 0x80000001 : 0x00000000);
+        values[5] = Float.intBitsToFloat(0xfffffffe);
+
+        assertRoundTrip(window(steadyTime(values.length), values));
+    }
+
+    public void testDeltaOfDeltaBuckets()
+    {
+        // Changes of the delta at the edges of each bucket, in both
+        // directions
+        long[] changes = {0, 1, -1, 0x7fff, -0x8000, 0x8000, -0x8001,
+            0x7fffff, -0x800000, 0x800000, -0x800001, 0x7fffffffL,
+            -0x80000000L, 0x80000000L, -0x80000001L, 1L << 40,
+            -(1L << 40)};
+
+        long[] time = new long[changes.length + 2];
+        long delta = 20000000L;
+
+        time[0] = SENSOR_BASE;
+        time[1] = time[0] + delta;
+        for (int i = 0; i < changes.length; i++)
+        {
+            delta += changes[i];
+            time[i + 2] = time[i + 1] + delta;
+        }
+
+        assertRoundTrip(window(time, constant(time.length, 1.0f)));
+    }
+
+    public void testFullWidthDeltaOfDelta()
+    {
+        // Deltas that overflow a long, so that the changes need the
+        // 64-bit bucket
+        long[] time = {Long.MIN_VALUE + 5, 0, Long.MAX_VALUE - 3, 7,
+            Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 0};
+
+        assertRoundTrip(window(time, constant(time.length, 1.0f)));
+    }
+
+    public void testRecordedLikeWindow()
+    {
+        Random random = new Random(1);
+
+        for (int count = 2; count <= 512; count *= 4)
+            assertRoundTrip(WindowCodecBenchmark.synthetic(count,
+                        SENSOR_BASE, random, true));
+    }
+
+    public void testBadData()
+    {
+        byte[] data = WindowCodec.encode(WindowCodecBenchmark.synthetic(
+                    100, SENSOR_BASE, new Random(2), true));
+
+        byte[] truncated = new byte[data.length - 10];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        assertDecodeFails(truncated);
+
+        truncated = new byte[WindowCodec.HEADER_SIZE - 1];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        assertDecodeFails(truncated);
+
+        data[0] ^= 1;
+        assertDecodeFails(data);
+    }
+
+
+    private static void assertRoundTrip(AccelWindow window)
+    {
+        assertSame(window, WindowCodec.decode(WindowCodec.encode(window)));
+    }
+
+    private static void assertDecodeFails(byte[] data)
+    {
+        try
+        {
+            WindowCodec.decode(data);
+            fail("Decoded a bad window");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+    }
+
+    /*
+     * Compares two windows, the values by their raw bits.
+     */
+    private static void assertSame(AccelWindow expected,
+            AccelWindow actual)
+    {
+        assertEquals(expected.getSequence(), actual.getSequence());
+        assertEquals(expected.getRate(), actual.getRate());
+        assertEquals(expected.getWallBase(), actual.getWallBase());
+        assertEquals(expected.getSensorBase(), actual.getSensorBase());
+        assertEquals(expected.size(), actual.size());
+
+        float[][] values = {expected.getX(), expected.getY(),
+            expected.getZ(), expected.getForce()};
+        float[][] decoded = {actual.getX(), actual.getY(), actual.getZ(),
+            actual.getForce()};
+
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals("time " + i, expected.getTimeStamps()[i],
+                    actual.getTimeStamps()[i]);
+
+            for (int c = 0; c < values.length; c++)
+                assertEquals("channel " + c + " sample " + i,
+                        Float.floatToRawIntBits(values[c][i]),
+                        Float.floatToRawIntBits(decoded[c][i]));
+        }
+    }
+
+    /*
+     * Makes a window with the values on the axes, reversed on the
+     * force so that the channels differ.
+     */
+    private static AccelWindow window(long[] time, float[] values)
+    {
+        int count = values.length;
+        float[] y = new float[count];
+        float[] force = new float[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            y[i] = -values[i];
+            force[i] = values[count - 1 - i];
+        }
+
+        return new AccelWindow(7, 1, 1300000000000L, SENSOR_BASE, time,
+                values.clone(), y, values.clone(), force);
+    }
+
+    private static long[] steadyTime(int count)
+    {
+        long[] time = new long[count];
+
+        for (int i = 0; i < count; i++)
+            time[i] = SENSOR_BASE + i * 20000000L;
+
+        return time;
+    }
+
+    private static float[] constant(int count, float value)
+    {
+        float[] values = new float[count];
+
+        for (int i = 0; i < count; i++)
+            values[i] = value;
+
+        return values;
+    }
+}